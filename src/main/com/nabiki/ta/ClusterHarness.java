@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Harness running a cluster of {@link ClusterWorker}s in separate JVMs on
+ * localhost. It feeds random bars through a {@link ClusterRouter} while workers
+ * join and leave, and checks every output against an {@link IndicatorProgram}
+ * computed in this JVM. It exits with non-zero status on the first mismatch.
+ * Workers are stopped when the harness ends, and exit by themselves when the
+ * harness is killed because their standard input closes.
+ * <p>
+ * Usage: {@code ClusterHarness [workers] [symbols] [bars]}
+ * </p>
+ */
+public class ClusterHarness {
+  static final String SPEC = "MACD(12,26,9); KDJ(9,3,3); MA(20); WMA(high,10); EMA(low,5)";
+
+  public static void main(String[] args) throws Exception {
+    var workers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+    var symbolCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    var bars = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+    if (workers < 2 || symbolCount <= 0 || bars <= 0)
+      throw new InvalidValueException("need at least 2 workers, symbols and bars");
+    var processes = new ArrayList<Process>();
+    boolean matched;
+    try {
+      var ports = new ArrayList<Integer>();
+      for (int i = 0; i < workers; ++i) {
+        var p = spawn();
+        processes.add(p);
+        ports.add(port(p));
+      }
+      matched = run(ports, symbolCount, bars);
+    } finally {
+      for (var p : processes)
+        p.destroy();
+      for (var p : processes)
+        if (!p.waitFor(5, TimeUnit.SECONDS))
+          p.destroyForcibly().waitFor();
+    }
+    System.exit(matched ? 0 : 1);
+  }
+
+  private static Process spawn() throws IOException {
+    var java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        ClusterWorker.class.getName(), "0", SPEC, "--exit-on-eof")
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+  }
+
+  /*
+  Read the port the worker prints after it starts listening.
+   */
+  private static int port(Process p) throws IOException {
+    var reader = new BufferedReader(new InputStreamReader(p.getInputStream(),
+        StandardCharsets.UTF_8));
+    var line = reader.readLine();
+    if (line == null || !line.startsWith("listening on "))
+      throw new IOException("worker failed to start: " + line);
+    return Integer.parseInt(line.substring("listening on ".length()).trim());
+  }
+
+  private static boolean run(List<Integer> ports, int symbolCount, int bars)
+      throws IOException {
+    var program = IndicatorProgram.compile(SPEC);
+    var symbols = new String[symbolCount];
+    var prices = new double[symbolCount];
+    var states = new HashMap<String, double[]>();
+    for (int i = 0; i < symbolCount; ++i) {
+      symbols[i] = "s" + i;
+      prices[i] = 100.0D;
+      states.put(symbols[i], program.newState());
+    }
+    var random = new Random(42);
+    var close = new double[symbolCount];
+    var high = new double[symbolCount];
+    var low = new double[symbolCount];
+    var events = events(ports, bars);
+    long nanos = 0;
+    try (var router = new ClusterRouter(SPEC, 64)) {
+      router.join("localhost", ports.get(0));
+      for (int t = 0; t < bars; ++t) {
+        var event = events.get(t);
+        if (event != null) {
+          var port = Math.abs(event);
+          if (event > 0)
+            router.join("localhost", port);
+          else
+            router.leave("localhost", port);
+          System.out.println("bar " + t + (event > 0 ? " join " : " leave ") + port);
+        }
+        for (int i = 0; i < symbolCount; ++i) {
+          prices[i] *= 1.0D + 0.01D * random.nextGaussian();
+          close[i] = prices[i];
+          high[i] = prices[i] * (1.0D + 0.005D * random.nextDouble());
+          low[i] = prices[i] * (1.0D - 0.005D * random.nextDouble());
+        }
+        var start = System.nanoTime();
+        var outputs = router.update(symbols, close, high, low);
+        nanos += System.nanoTime() - start;
+        for (int i = 0; i < symbolCount; ++i) {
+          var state = states.get(symbols[i]);
+          program.update(state, close[i], high[i], low[i]);
+          if (!check(symbols[i], t, program.read(state), outputs[i]))
+            return false;
+        }
+      }
+      var gathered = router.gather(Arrays.asList(symbols));
+      for (var s : symbols)
+        if (!check(s, bars, program.read(states.get(s)), gathered.get(s)))
+          return false;
+    }
+    System.out.printf("%d bars x %d symbols matched, %.0f ns per symbol-bar%n",
+        bars, symbolCount, (double) nanos / bars / symbolCount);
+    return true;
+  }
+
+  /*
+  Join the other workers in the first half of the bars, then let the first worker
+  leave and join again. Positive port joins and negative port leaves.
+   */
+  private static Map<Integer, Integer> events(List<Integer> ports, int bars) {
+    var r = new HashMap<Integer, Integer>();
+    var n = ports.size();
+    for (int i = 1; i < n; ++i)
+      r.put(i * bars / (2 * n), ports.get(i));
+    r.put(bars / 2 + 1, -ports.get(0));
+    r.put(3 * bars / 4 + 1, ports.get(0));
+    return r;
+  }
+
+  private static boolean check(String symbol, int bar, double[] expected,
+                               double[] actual) {
+    if (Arrays.equals(expected, actual))
+      return true;
+    System.err.println("mismatch on " + symbol + " at bar " + bar + ": expected "
+        + Arrays.toString(expected) + ", got " + Arrays.toString(actual));
+    return false;
+  }
+}
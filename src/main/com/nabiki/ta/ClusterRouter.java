@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.nabiki.ta.ClusterWorker.*;
+
+/**
+ * Router in cluster mode that assigns symbols to {@link ClusterWorker}s by
+ * consistent hashing, forwards bars to their owners and gathers the results.
+ * When a worker joins or leaves, only the symbols changing owners are moved, and
+ * each is moved as its compact state, not by replaying its history.
+ * <p>
+ * Outputs are returned in the order of {@link #getOutputs()}. Methods are
+ * synchronized, so one router serializes all requests of its feed. Feed a whole
+ * cross-section with {@link #update(String[], double[], double[], double[])}, it
+ * sends one request to each worker before waiting for any reply, so the workers
+ * compute in parallel and the round trips are paid once per batch.
+ * </p>
+ * <p>
+ * A state is moved in two phases. It is copied to its new owner first, and
+ * dropped from its old owner only after all copies of the membership change
+ * succeed. If a copy fails, the copies already made are dropped and the
+ * membership is left unchanged.
+ * </p>
+ */
+public class ClusterRouter implements Closeable {
+  private final IndicatorProgram program;
+  private final String spec;
+  private final HashRing ring;
+  private final Map<String, Connection> connections = new HashMap<>();
+  private final Set<String> symbols = new HashSet<>();
+
+  /**
+   * Create router.
+   *
+   * @param spec         indicator specifications, the same as the workers'
+   * @param virtualNodes number of points of each worker on the hash ring
+   */
+  public ClusterRouter(String spec, int virtualNodes) {
+    this.program = IndicatorProgram.compile(spec);
+    this.spec = normalize(program);
+    this.ring = new HashRing(virtualNodes);
+  }
+
+  public List<String> getOutputs() {
+    return program.getOutputs();
+  }
+
+  /**
+   * Add worker to cluster and move the symbols it now owns from their previous
+   * owners. The worker isn't added if any state can't be copied to it.
+   *
+   * @param host worker host
+   * @param port worker port
+   * @throws IOException if the worker can't be reached or runs other indicators
+   */
+  public synchronized void join(String host, int port) throws IOException {
+    var node = host + ":" + port;
+    if (connections.containsKey(node))
+      return;
+    var conn = new Connection(host, port);
+    try {
+      conn.out.writeByte(OP_HELLO);
+      conn.out.writeUTF(spec);
+      conn.call();
+    } catch (IOException e) {
+      conn.close();
+      throw e;
+    }
+    var before = owners();
+    ring.addNode(node);
+    var moves = new ArrayList<Move>();
+    for (var e : before.entrySet())
+      if (node.equals(ring.nodeFor(e.getKey())))
+        moves.add(new Move(e.getKey(), connections.get(e.getValue()), conn));
+    try {
+      copy(moves);
+    } catch (IOException e) {
+      ring.removeNode(node);
+      conn.close();
+      throw e;
+    }
+    connections.put(node, conn);
+    drop(moves);
+  }
+
+  /**
+   * Remove worker from cluster after moving its symbols to their new owners. The
+   * worker stays in the cluster if any state can't be copied from it.
+   *
+   * @param host worker host
+   * @param port worker port
+   * @throws IOException if the states can't be moved
+   */
+  public synchronized void leave(String host, int port) throws IOException {
+    var node = host + ":" + port;
+    var conn = connections.get(node);
+    if (conn == null)
+      return;
+    if (connections.size() == 1 && !symbols.isEmpty())
+      throw new IOException("last worker can't leave");
+    var before = owners();
+    ring.removeNode(node);
+    var moves = new ArrayList<Move>();
+    for (var e : before.entrySet())
+      if (node.equals(e.getValue()))
+        moves.add(new Move(e.getKey(), conn,
+            connections.get(ring.nodeFor(e.getKey()))));
+    try {
+      copy(moves);
+    } catch (IOException e) {
+      ring.addNode(node);
+      throw e;
+    }
+    connections.remove(node);
+    try {
+      drop(moves);
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Forward a bar to the owner of the symbol.
+   *
+   * @param symbol symbol
+   * @param close  close price
+   * @param high   high price
+   * @param low    low price
+   * @return outputs after update
+   * @throws IOException if the owner can't be reached
+   */
+  public synchronized double[] update(String symbol, double close, double high,
+                                      double low) throws IOException {
+    var conn = owner(symbol);
+    conn.out.writeByte(OP_UPDATE);
+    conn.out.writeUTF(symbol);
+    conn.out.writeDouble(close);
+    conn.out.writeDouble(high);
+    conn.out.writeDouble(low);
+    // The owner may apply the bar even if the reply is lost.
+    symbols.add(symbol);
+    conn.call();
+    return readArray(conn.in);
+  }
+
+  /**
+   * Forward bars of many symbols to their owners. Each owner receives one request
+   * with all its bars, and all requests are sent before the replies are read.
+   *
+   * @param symbols symbols, each appears at most once
+   * @param close   close prices
+   * @param high    high prices
+   * @param low     low prices
+   * @return outputs after update, in the order of symbols
+   * @throws IOException if an owner can't be reached or fails, bars sent to the
+   *                     other owners are still applied and their symbols are
+   *                     still moved when the cluster rebalances
+   */
+  public synchronized double[][] update(String[] symbols, double[] close,
+                                        double[] high, double[] low)
+      throws IOException {
+    if (close.length != symbols.length || high.length != symbols.length
+        || low.length != symbols.length)
+      throw new InvalidValueException("lengths not match");
+    var groups = group(symbols);
+    var sent = new LinkedHashMap<Connection, List<Integer>>();
+    IOException error = null;
+    for (var g : groups.entrySet()) {
+      // The owner may apply the bars even if the request breaks midway or the
+      // reply is lost, so track the symbols before sending.
+      for (var i : g.getValue())
+        this.symbols.add(symbols[i]);
+      var out = g.getKey().out;
+      try {
+        out.writeByte(OP_UPDATE_BATCH);
+        out.writeInt(g.getValue().size());
+        for (var i : g.getValue()) {
+          out.writeUTF(symbols[i]);
+          out.writeDouble(close[i]);
+          out.writeDouble(high[i]);
+          out.writeDouble(low[i]);
+        }
+        out.flush();
+      } catch (IOException e) {
+        error = e;
+        break;
+      }
+      sent.put(g.getKey(), g.getValue());
+    }
+    var r = new double[symbols.length][];
+    receive(sent, r, error);
+    return r;
+  }
+
+  /**
+   * Get the latest outputs of the symbol.
+   *
+   * @param symbol symbol
+   * @return outputs, or {@code null} if the symbol has no bar
+   * @throws IOException if the owner can't be reached
+   */
+  public synchronized double[] get(String symbol) throws IOException {
+    var conn = owner(symbol);
+    conn.out.writeByte(OP_GET);
+    conn.out.writeUTF(symbol);
+    conn.call();
+    return readArray(conn.in);
+  }
+
+  /**
+   * Gather the latest outputs of the symbols. Each owner receives one request for
+   * all its symbols.
+   *
+   * @param symbols symbols
+   * @return outputs keyed by symbol, symbols without bar are omitted
+   * @throws IOException if an owner can't be reached
+   */
+  public synchronized Map<String, double[]> gather(Collection<String> symbols)
+      throws IOException {
+    var array = symbols.toArray(new String[0]);
+    var groups = group(array);
+    var sent = new LinkedHashMap<Connection, List<Integer>>();
+    IOException error = null;
+    for (var g : groups.entrySet()) {
+      var out = g.getKey().out;
+      try {
+        out.writeByte(OP_GET_BATCH);
+        out.writeInt(g.getValue().size());
+        for (var i : g.getValue())
+          out.writeUTF(array[i]);
+        out.flush();
+      } catch (IOException e) {
+        error = e;
+        break;
+      }
+      sent.put(g.getKey(), g.getValue());
+    }
+    var values = new double[array.length][];
+    receive(sent, values, error);
+    var r = new LinkedHashMap<String, double[]>();
+    for (int i = 0; i < array.length; ++i)
+      if (values[i] != null)
+        r.put(array[i], values[i]);
+    return r;
+  }
+
+  /*
+  Group indices of symbols by their owners.
+   */
+  private Map<Connection, List<Integer>> group(String[] symbols)
+      throws IOException {
+    var r = new LinkedHashMap<Connection, List<Integer>>();
+    for (int i = 0; i < symbols.length; ++i)
+      r.computeIfAbsent(owner(symbols[i]), k -> new ArrayList<>()).add(i);
+    return r;
+  }
+
+  /*
+  Read replies of all sent batches, so every connection stays in step even if
+  one of the owners fails, then throw the error of sending, if any, or of the
+  first failed reply.
+   */
+  private void receive(Map<Connection, List<Integer>> groups, double[][] r,
+                       IOException error) throws IOException {
+    for (var g : groups.entrySet()) {
+      try {
+        g.getKey().receive();
+        for (var i : g.getValue())
+          r[i] = readArray(g.getKey().in);
+      } catch (IOException e) {
+        if (error == null)
+          error = e;
+        else
+          error.addSuppressed(e);
+      }
+    }
+    if (error != null)
+      throw error;
+  }
+
+  private Connection owner(String symbol) throws IOException {
+    var node = ring.nodeFor(symbol);
+    if (node == null)
+      throw new IOException("no worker");
+    return connections.get(node);
+  }
+
+  private Map<String, String> owners() {
+    var r = new HashMap<String, String>();
+    for (var s : symbols) {
+      var n = ring.nodeFor(s);
+      if (n != null)
+        r.put(s, n);
+    }
+    return r;
+  }
+
+  /*
+  Copy states to their new owners, and drop the copies already made if any copy
+  fails. The old owners keep their states.
+   */
+  private void copy(List<Move> moves) throws IOException {
+    var done = new ArrayList<Move>();
+    try {
+      for (var m : moves) {
+        if (m.to == null)
+          throw new IOException("no worker to take " + m.symbol);
+        m.from.out.writeByte(OP_EXPORT);
+        m.from.out.writeUTF(m.symbol);
+        m.from.call();
+        var state = readArray(m.from.in);
+        if (state == null)
+          continue;
+        m.to.out.writeByte(OP_IMPORT);
+        m.to.out.writeUTF(m.symbol);
+        writeArray(m.to.out, state);
+        m.to.call();
+        done.add(m);
+      }
+    } catch (IOException e) {
+      for (var m : done) {
+        try {
+          drop(m.to, m.symbol);
+        } catch (IOException ex) {
+          e.addSuppressed(ex);
+        }
+      }
+      throw e;
+    }
+  }
+
+  /*
+  Drop moved states from their old owners after all copies succeed. The new
+  owners serve the symbols already, so a failed drop only leaves a stale state.
+   */
+  private void drop(List<Move> moves) throws IOException {
+    IOException error = null;
+    for (var m : moves) {
+      try {
+        drop(m.from, m.symbol);
+      } catch (IOException e) {
+        if (error == null)
+          error = e;
+        else
+          error.addSuppressed(e);
+      }
+    }
+    if (error != null)
+      throw error;
+  }
+
+  private static void drop(Connection conn, String symbol) throws IOException {
+    conn.out.writeByte(OP_DROP);
+    conn.out.writeUTF(symbol);
+    conn.call();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (var c : connections.values())
+      c.close();
+    connections.clear();
+  }
+
+  private static class Move {
+    final String symbol;
+    final Connection from;
+    final Connection to;
+
+    Move(String symbol, Connection from, Connection to) {
+      this.symbol = symbol;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  private static class Connection implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    Connection(String host, int port) throws IOException {
+      socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /*
+    Send the buffered request and check the status of reply.
+     */
+    void call() throws IOException {
+      out.flush();
+      receive();
+    }
+
+    /*
+    Check the status of reply to a request sent before.
+     */
+    void receive() throws IOException {
+      if (in.readByte() != STATUS_OK)
+        throw new IOException(in.readUTF());
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Worker in cluster mode that owns the indicator state of the symbols assigned to
+ * it by {@link ClusterRouter}. The indicators are compiled from specifications by
+ * {@link IndicatorProgram}, so the whole state of a symbol is one
+ * {@code double[]} that moves between workers as is when the cluster rebalances.
+ * <p>
+ * Start a worker in its own JVM with:<br/>
+ * <code>
+ * java com.nabiki.ta.ClusterWorker port "MACD(12,26,9); KDJ(9,3,3)"
+ * </code>
+ * </p>
+ */
+public class ClusterWorker implements Closeable {
+  private static final Logger LOGGER = Logger.getLogger(ClusterWorker.class.getName());
+
+  static final byte OP_HELLO = 1;
+  static final byte OP_UPDATE = 2;
+  static final byte OP_GET = 3;
+  static final byte OP_EXPORT = 4;
+  static final byte OP_IMPORT = 5;
+  static final byte OP_SYMBOLS = 6;
+  static final byte OP_UPDATE_BATCH = 7;
+  static final byte OP_GET_BATCH = 8;
+  static final byte OP_DROP = 9;
+  static final byte STATUS_OK = 0;
+  static final byte STATUS_ERROR = 1;
+
+  private final IndicatorProgram program;
+  private final String spec;
+  private final ServerSocket server;
+  private final Map<String, double[]> states = new ConcurrentHashMap<>();
+  private volatile boolean closed = false;
+
+  /**
+   * Create worker listening on the loopback address.
+   *
+   * @param port port, or {@code 0} for any free port
+   * @param spec indicator specifications, the same as the router's
+   * @throws IOException if the port can't be bound
+   */
+  public ClusterWorker(int port, String spec) throws IOException {
+    this.program = IndicatorProgram.compile(spec);
+    this.spec = normalize(program);
+    this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+  }
+
+  static String normalize(IndicatorProgram program) {
+    var b = new StringBuilder();
+    for (var s : program.getSpecs())
+      b.append(s).append(';');
+    return b.toString();
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Start accepting connections in a background thread.
+   */
+  public void start() {
+    var t = new Thread(this::accept, "cluster-worker-" + getPort());
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        var socket = server.accept();
+        socket.setTcpNoDelay(true);
+        var t = new Thread(() -> serve(socket), "cluster-worker-conn");
+        t.setDaemon(true);
+        t.start();
+      } catch (IOException e) {
+        if (!closed)
+          LOGGER.log(Level.WARNING, "accept failed", e);
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (socket;
+         var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+      while (true) {
+        byte op;
+        try {
+          op = in.readByte();
+        } catch (EOFException e) {
+          return;
+        }
+        handle(op, in, out);
+        out.flush();
+      }
+    } catch (IOException e) {
+      if (!closed)
+        LOGGER.log(Level.WARNING, "connection dropped", e);
+    }
+  }
+
+  private void handle(byte op, DataInputStream in, DataOutputStream out)
+      throws IOException {
+    switch (op) {
+      case OP_HELLO: {
+        var s = in.readUTF();
+        if (spec.equals(s)) {
+          out.writeByte(STATUS_OK);
+        } else {
+          out.writeByte(STATUS_ERROR);
+          out.writeUTF("worker runs " + spec);
+        }
+        break;
+      }
+      case OP_UPDATE: {
+        var symbol = in.readUTF();
+        var close = in.readDouble();
+        var high = in.readDouble();
+        var low = in.readDouble();
+        var state = states.computeIfAbsent(symbol, k -> program.newState());
+        double[] r;
+        synchronized (state) {
+          program.update(state, close, high, low);
+          r = program.read(state);
+        }
+        out.writeByte(STATUS_OK);
+        writeArray(out, r);
+        break;
+      }
+      case OP_UPDATE_BATCH: {
+        var n = in.readInt();
+        var r = new double[n][];
+        for (int i = 0; i < n; ++i) {
+          var symbol = in.readUTF();
+          var close = in.readDouble();
+          var high = in.readDouble();
+          var low = in.readDouble();
+          var state = states.computeIfAbsent(symbol, k -> program.newState());
+          synchronized (state) {
+            program.update(state, close, high, low);
+            r[i] = program.read(state);
+          }
+        }
+        out.writeByte(STATUS_OK);
+        for (var v : r)
+          writeArray(out, v);
+        break;
+      }
+      case OP_GET: {
+        out.writeByte(STATUS_OK);
+        writeOutputs(out, in.readUTF());
+        break;
+      }
+      case OP_GET_BATCH: {
+        var symbols = new String[in.readInt()];
+        for (int i = 0; i < symbols.length; ++i)
+          symbols[i] = in.readUTF();
+        out.writeByte(STATUS_OK);
+        for (var s : symbols)
+          writeOutputs(out, s);
+        break;
+      }
+      case OP_DROP: {
+        states.remove(in.readUTF());
+        out.writeByte(STATUS_OK);
+        break;
+      }
+      case OP_EXPORT: {
+        // Keep the state until the router drops it after a successful import.
+        var state = states.get(in.readUTF());
+        out.writeByte(STATUS_OK);
+        if (state == null) {
+          out.writeInt(-1);
+        } else {
+          synchronized (state) {
+            writeArray(out, state);
+          }
+        }
+        break;
+      }
+      case OP_IMPORT: {
+        var symbol = in.readUTF();
+        var state = readArray(in);
+        if (state == null || state.length != program.getStateSize()) {
+          out.writeByte(STATUS_ERROR);
+          out.writeUTF("state size mismatch for " + symbol);
+        } else {
+          states.put(symbol, state);
+          out.writeByte(STATUS_OK);
+        }
+        break;
+      }
+      case OP_SYMBOLS: {
+        var symbols = states.keySet().toArray(new String[0]);
+        out.writeByte(STATUS_OK);
+        out.writeInt(symbols.length);
+        for (var s : symbols)
+          out.writeUTF(s);
+        break;
+      }
+      default:
+        throw new IOException("unknown operation " + op);
+    }
+  }
+
+  private void writeOutputs(DataOutputStream out, String symbol) throws IOException {
+    var state = states.get(symbol);
+    if (state == null) {
+      out.writeInt(-1);
+    } else {
+      synchronized (state) {
+        writeArray(out, program.read(state));
+      }
+    }
+  }
+
+  static void writeArray(DataOutputStream out, double[] a) throws IOException {
+    out.writeInt(a.length);
+    for (var v : a)
+      out.writeDouble(v);
+  }
+
+  static double[] readArray(DataInputStream in) throws IOException {
+    var n = in.readInt();
+    if (n < 0)
+      return null;
+    var a = new double[n];
+    for (int i = 0; i < n; ++i)
+      a[i] = in.readDouble();
+    return a;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    server.close();
+  }
+
+  /**
+   * Run worker until killed. With {@code --exit-on-eof}, the worker also exits
+   * when its standard input closes, so a worker started by another process ends
+   * with that process.
+   *
+   * @param args port, specifications and optional {@code --exit-on-eof}
+   * @throws Exception if the worker can't start
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2 || args.length > 3
+        || (args.length == 3 && !args[2].equals("--exit-on-eof"))) {
+      System.err.println("usage: ClusterWorker <port> <specs> [--exit-on-eof]");
+      System.exit(1);
+    }
+    var worker = new ClusterWorker(Integer.parseInt(args[0]), args[1]);
+    if (args.length == 3) {
+      var watcher = new Thread(() -> {
+        try {
+          while (System.in.read() >= 0) {
+          }
+        } catch (IOException ignored) {
+        }
+        System.exit(0);
+      }, "stdin-watcher");
+      watcher.setDaemon(true);
+      watcher.start();
+    }
+    System.out.println("listening on " + worker.getPort());
+    System.out.flush();
+    worker.accept();
+  }
+}
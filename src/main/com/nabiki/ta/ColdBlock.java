@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.util.Arrays;
+
+/**
+ * Immutable block of points compressed in the Gorilla time series format.
+ * Timestamps are encoded as delta of delta, and values as XOR with the previous
+ * value, with the following control bits:<br/>
+ * <code>
+ * delta of delta: 0 (zero), 10 (7 bits), 110 (9 bits), 1110 (12 bits), 1111 (64 bits)<br/>
+ * value: 0 (same value), 10 (bits inside previous window), 11 (6 bits leading zeros,
+ * 6 bits length - 1, bits)
+ * </code>
+ */
+class ColdBlock {
+  private final long[] words;
+  private final int bits;
+  private final int size;
+
+  private ColdBlock(long[] words, int bits, int size) {
+    this.words = words;
+    this.bits = bits;
+    this.size = size;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Number of bytes taken by compressed data.
+   *
+   * @return number of bytes
+   */
+  int bytes() {
+    return words.length * Long.BYTES;
+  }
+
+  static ColdBlock encode(long[] times, double[] values, int n) {
+    var w = new BitWriter(Math.max(2, n));
+    long prevTime = 0, prevDelta = 0, prevValue = 0;
+    int prevLead = -1, prevTrail = 0;
+    for (int i = 0; i < n; ++i) {
+      var v = Double.doubleToRawLongBits(values[i]);
+      if (i == 0) {
+        w.write(times[0], 64);
+        w.write(v, 64);
+      } else {
+        var delta = times[i] - prevTime;
+        var dod = delta - prevDelta;
+        if (dod == 0) {
+          w.write(0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+          w.write(0b10, 2);
+          w.write(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+          w.write(0b110, 3);
+          w.write(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+          w.write(0b1110, 4);
+          w.write(dod, 12);
+        } else {
+          w.write(0b1111, 4);
+          w.write(dod, 64);
+        }
+        prevDelta = delta;
+        var x = v ^ prevValue;
+        if (x == 0) {
+          w.write(0, 1);
+        } else {
+          var lead = Math.min(63, Long.numberOfLeadingZeros(x));
+          var trail = Long.numberOfTrailingZeros(x);
+          if (prevLead >= 0 && lead >= prevLead && trail >= prevTrail) {
+            w.write(0b10, 2);
+            w.write(x >>> prevTrail, 64 - prevLead - prevTrail);
+          } else {
+            var len = 64 - lead - trail;
+            w.write(0b11, 2);
+            w.write(lead, 6);
+            w.write(len - 1, 6);
+            w.write(x >>> trail, len);
+            prevLead = lead;
+            prevTrail = trail;
+          }
+        }
+      }
+      prevTime = times[i];
+      prevValue = v;
+    }
+    return new ColdBlock(w.toArray(), w.position, n);
+  }
+
+  void decode(long[] times, double[] values) {
+    var r = new BitReader(words);
+    long prevTime = 0, prevDelta = 0, prevValue = 0;
+    int prevLead = 0, prevTrail = 0;
+    for (int i = 0; i < size; ++i) {
+      if (i == 0) {
+        prevTime = r.read(64);
+        prevValue = r.read(64);
+      } else {
+        long dod;
+        if (r.read(1) == 0)
+          dod = 0;
+        else if (r.read(1) == 0)
+          dod = r.readSigned(7);
+        else if (r.read(1) == 0)
+          dod = r.readSigned(9);
+        else if (r.read(1) == 0)
+          dod = r.readSigned(12);
+        else
+          dod = r.read(64);
+        prevDelta += dod;
+        prevTime += prevDelta;
+        if (r.read(1) != 0) {
+          if (r.read(1) != 0) {
+            prevLead = (int) r.read(6);
+            var len = (int) r.read(6) + 1;
+            prevTrail = 64 - prevLead - len;
+          }
+          prevValue ^= r.read(64 - prevLead - prevTrail) << prevTrail;
+        }
+      }
+      times[i] = prevTime;
+      values[i] = Double.longBitsToDouble(prevValue);
+    }
+    assert r.position <= bits;
+  }
+
+  private static class BitWriter {
+    private long[] words;
+    private int position = 0;
+
+    BitWriter(int capacity) {
+      words = new long[capacity];
+    }
+
+    /*
+    Write the lowest n bits of v.
+     */
+    void write(long v, int n) {
+      if (n < 64)
+        v &= (1L << n) - 1;
+      var idx = position >>> 6;
+      var free = 64 - (position & 63);
+      if (idx + 1 >= words.length)
+        words = Arrays.copyOf(words, words.length << 1);
+      if (n <= free) {
+        words[idx] |= v << (free - n);
+      } else {
+        words[idx] |= v >>> (n - free);
+        words[idx + 1] |= v << (64 - n + free);
+      }
+      position += n;
+    }
+
+    long[] toArray() {
+      return Arrays.copyOf(words, (position + 63) >>> 6);
+    }
+  }
+
+  private static class BitReader {
+    private final long[] words;
+    private int position = 0;
+
+    BitReader(long[] words) {
+      this.words = words;
+    }
+
+    long read(int n) {
+      var idx = position >>> 6;
+      var free = 64 - (position & 63);
+      long r;
+      if (n <= free)
+        r = words[idx] >>> (free - n);
+      else
+        r = (words[idx] << (n - free)) | (words[idx + 1] >>> (64 - n + free));
+      position += n;
+      return n < 64 ? r & ((1L << n) - 1) : r;
+    }
+
+    long readSigned(int n) {
+      var r = read(n);
+      return (r << (64 - n)) >> (64 - n);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning keys to nodes. Each node is placed on the ring at
+ * several virtual points, so adding or removing a node only moves the keys
+ * between that node and its neighbours. The hash is computed over UTF-8 bytes and
+ * is the same in every JVM.
+ */
+public class HashRing {
+  private final int virtualNodes;
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+  private final Set<String> nodes = new TreeSet<>();
+
+  public HashRing(int virtualNodes) {
+    if (virtualNodes <= 0)
+      throw new InvalidValueException("not positive");
+    this.virtualNodes = virtualNodes;
+  }
+
+  public void addNode(String node) {
+    if (!nodes.add(node))
+      return;
+    for (int i = 0; i < virtualNodes; ++i)
+      ring.put(hash(node + "#" + i), node);
+  }
+
+  public void removeNode(String node) {
+    if (!nodes.remove(node))
+      return;
+    ring.values().removeIf(node::equals);
+    // Rebuild points of remaining nodes in case two nodes collide on a point.
+    for (var n : nodes)
+      for (int i = 0; i < virtualNodes; ++i)
+        ring.putIfAbsent(hash(n + "#" + i), n);
+  }
+
+  public Set<String> getNodes() {
+    return Set.copyOf(nodes);
+  }
+
+  /**
+   * Get the node owning the specified key.
+   *
+   * @param key key
+   * @return node, or {@code null} if the ring is empty
+   */
+  public String nodeFor(String key) {
+    if (ring.isEmpty())
+      return null;
+    Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+    return e != null ? e.getValue() : ring.firstEntry().getValue();
+  }
+
+  /*
+  FNV-1a over UTF-8 bytes, then mixed to spread the points of similar strings.
+   */
+  private static long hash(String s) {
+    var h = 0xCBF29CE484222325L;
+    for (var b : s.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xFF;
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
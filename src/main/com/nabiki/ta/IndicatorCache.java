@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Cache of computed indicator columns for historical queries. An entry is keyed by
+ * symbol, indicator type, parameters and the first bar of the range, and holds
+ * the computed outputs as primitive columns together with the compact
+ * {@link IndicatorProgram} state of the indicator, so a query reaching beyond the
+ * cached range only computes the newer bars.
+ * <p>
+ * Entries are evicted in least-recently-used order once the total number of
+ * doubles retained by the entries, columns and states, exceeds the configured
+ * bound. Concurrent queries for the same key
+ * are serialized on the entry, so the bars are computed only once.
+ * </p>
+ */
+public class IndicatorCache {
+  public enum Type {
+    /**
+     * Moving average, parameters (days), columns (ma).
+     */
+    MA(1, 1),
+    /**
+     * Weighted moving average, parameters (window), columns (wma).
+     */
+    WMA(1, 1),
+    /**
+     * MACD, parameters (short-term, long-term, mid-term), columns (macd, dif,
+     * dea).
+     */
+    MACD(3, 3),
+    /**
+     * KDJ, parameters (days, k-days, d-days), columns (k, d, j).
+     */
+    KDJ(3, 3);
+
+    private final int parameters;
+    private final int columns;
+
+    Type(int parameters, int columns) {
+      this.parameters = parameters;
+      this.columns = columns;
+    }
+
+    public int getParameters() {
+      return parameters;
+    }
+
+    public int getColumns() {
+      return columns;
+    }
+  }
+
+  /**
+   * Source of historical bars.
+   */
+  public interface BarSource {
+    /**
+     * Load bars of the specified symbol in range {@code [from, to)} into the
+     * arrays, starting at array index {@code 0}.
+     *
+     * @param symbol symbol
+     * @param from   index of the first bar, inclusive
+     * @param to     index of the last bar, exclusive
+     * @param close  close prices
+     * @param high   high prices
+     * @param low    low prices
+     * @return number of bars loaded, less than {@code to - from} if the history
+     * ends before {@code to}
+     */
+    int load(String symbol, int from, int to, double[] close, double[] high,
+             double[] low);
+  }
+
+  private static final int LOAD_CHUNK = 4096;
+
+  private final BarSource source;
+  private final long maxValues;
+  private final LinkedHashMap<Key, Entry> entries
+      = new LinkedHashMap<>(16, 0.75F, true);
+  private long totalValues = 0L;
+
+  /**
+   * Create cache over the specified bar source.
+   *
+   * @param source    bar source
+   * @param maxValues maximum number of doubles retained by all entries
+   */
+  public IndicatorCache(BarSource source, long maxValues) {
+    if (maxValues <= 0)
+      throw new InvalidValueException("not positive");
+    this.source = Objects.requireNonNull(source, "source null");
+    this.maxValues = maxValues;
+  }
+
+  /**
+   * Get indicator columns of the specified symbol over bars {@code [from, to)}.
+   * The returned columns are copies indexed {@code [column][bar - from]}, and are
+   * shorter than {@code to - from} if the history ends before {@code to}.
+   *
+   * @param symbol symbol
+   * @param type   indicator type
+   * @param params indicator parameters, see {@link Type}
+   * @param from   index of the first bar, inclusive
+   * @param to     index of the last bar, exclusive
+   * @return indicator columns
+   */
+  public double[][] get(String symbol, Type type, int[] params, int from, int to) {
+    Objects.requireNonNull(symbol, "symbol null");
+    Objects.requireNonNull(type, "type null");
+    if (params == null || params.length != type.getParameters())
+      throw new InvalidValueException(String.format("%s needs %d parameters",
+          type, type.getParameters()));
+    if (from < 0 || to < from)
+      throw new InvalidValueException(String.format("[%d, %d)", from, to));
+    var key = new Key(symbol, type, params.clone(), from);
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(key);
+        entries.put(key, entry);
+      }
+    }
+    synchronized (entry) {
+      var added = entry.extend(to - from);
+      if (added > 0)
+        account(entry, added);
+      return entry.copy(to - from);
+    }
+  }
+
+  /**
+   * Remove all entries of the specified symbol, for example after its history is
+   * corrected.
+   *
+   * @param symbol symbol
+   */
+  public void invalidate(String symbol) {
+    synchronized (entries) {
+      var itr = entries.values().iterator();
+      while (itr.hasNext()) {
+        var e = itr.next();
+        if (e.key.symbol.equals(symbol)) {
+          totalValues -= e.weight;
+          itr.remove();
+        }
+      }
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  private void account(Entry entry, long values) {
+    synchronized (entries) {
+      if (entries.get(entry.key) != entry)
+        return;
+      entry.weight += values;
+      totalValues += values;
+      var itr = entries.values().iterator();
+      while (totalValues > maxValues && itr.hasNext()) {
+        var e = itr.next();
+        totalValues -= e.weight;
+        itr.remove();
+      }
+    }
+  }
+
+  private static class Key {
+    private final String symbol;
+    private final Type type;
+    private final int[] params;
+    private final int from;
+    private final int hash;
+
+    Key(String symbol, Type type, int[] params, int from) {
+      this.symbol = symbol;
+      this.type = type;
+      this.params = params;
+      this.from = from;
+      this.hash = Objects.hash(symbol, type, Arrays.hashCode(params), from);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof Key))
+        return false;
+      var k = (Key) o;
+      return from == k.from && type == k.type && symbol.equals(k.symbol)
+          && Arrays.equals(params, k.params);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private class Entry {
+    private final Key key;
+    private final IndicatorProgram program;
+    private final double[] state;
+    private double[][] columns;
+    private int count = 0;
+    private long weight = 0L;
+    private long charged = 0L;
+
+    Entry(Key key) {
+      this.key = key;
+      var p = key.params;
+      switch (key.type) {
+        case MA:
+          program = IndicatorProgram.compile(String.format("MA(%d)", p[0]));
+          break;
+        case WMA:
+          program = IndicatorProgram.compile(String.format("WMA(%d)", p[0]));
+          break;
+        case MACD:
+          program = IndicatorProgram.compile(
+              String.format("MACD(%d,%d,%d)", p[0], p[1], p[2]));
+          break;
+        case KDJ:
+          program = IndicatorProgram.compile(
+              String.format("KDJ(%d,%d,%d)", p[0], p[1], p[2]));
+          break;
+        default:
+          throw new InvalidValueException("unknown type " + key.type);
+      }
+      state = program.newState();
+      columns = new double[key.type.getColumns()][0];
+    }
+
+    /*
+    Compute bars up to the specified length, loading them in chunks until the
+    source runs out of history, and return the number of values retained since
+    last call, including the state on first call.
+     */
+    long extend(int length) {
+      if (length > count)
+        load(length);
+      var added = retained() - charged;
+      charged += added;
+      return added;
+    }
+
+    private void load(int length) {
+      var chunk = Math.min(LOAD_CHUNK, length - count);
+      var close = new double[chunk];
+      var high = new double[chunk];
+      var low = new double[chunk];
+      while (count < length) {
+        var n = Math.min(chunk, length - count);
+        var loaded = source.load(key.symbol, key.from + count, key.from + count + n,
+            close, high, low);
+        if (loaded <= 0)
+          break;
+        loaded = Math.min(loaded, n);
+        if (count + loaded > columns[0].length) {
+          var capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+              Math.max(count + loaded, (long) columns[0].length << 1));
+          for (int c = 0; c < columns.length; ++c)
+            columns[c] = Arrays.copyOf(columns[c], capacity);
+        }
+        for (int i = 0; i < loaded; ++i, ++count) {
+          program.update(state, close[i], high[i], low[i]);
+          for (int c = 0; c < columns.length; ++c)
+            columns[c][count] = state[program.getOutputSlot(c)];
+        }
+        if (loaded < n)
+          break;
+      }
+    }
+
+    /*
+    Number of doubles kept alive by this entry, the capacity of columns and the
+    indicator state.
+     */
+    private long retained() {
+      return (long) columns.length * columns[0].length + state.length;
+    }
+
+    double[][] copy(int length) {
+      var n = Math.min(length, count);
+      var r = new double[columns.length][];
+      for (int c = 0; c < columns.length; ++c)
+        r[c] = Arrays.copyOf(columns[c], n);
+      return r;
+    }
+  }
+}
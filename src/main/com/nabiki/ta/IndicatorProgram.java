@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of {@link IndicatorSpec} compiled into one update routine. All state of
+ * the indicators lives in one {@code double[]}, created by {@link #newState()} for
+ * each symbol. Compiling binds the parameters and state offsets of every indicator
+ * as constants into a static kernel, and folds the kernels into one
+ * {@link MethodHandle} chain, so a bar runs straight-line code without dispatch on
+ * indicator type. The outputs are read from the state at the slots returned by
+ * {@link #slot(String)}.
+ * <p>
+ * Registered indicators and their outputs:<br/>
+ * <code>
+ * EMA(n): alpha = 2 / (n + 1), output ema<br/>
+ * SMA(n, w): alpha = w / n, output sma<br/>
+ * MA(n): output ma<br/>
+ * WMA(n): output wma<br/>
+ * MACD(short_term, long_term, mid_term): outputs macd, dif, dea<br/>
+ * KDJ(n, k, d): outputs k, d, j, reads close, high and low, so it takes no
+ * source other than close
+ * </code>
+ * </p>
+ * The values are the same as the ones of {@link Ema}, {@link Sma}, {@link Ma},
+ * {@link Wma}, {@link Macd} and {@link Kdj}, except MA and WMA roll their window
+ * sums instead of summing the window on every bar.
+ */
+public class IndicatorProgram {
+  private static final int OP_EMA = 0;
+  private static final int OP_MA = 1;
+  private static final int OP_WMA = 2;
+  private static final int OP_MACD = 3;
+  private static final int OP_KDJ = 4;
+
+  /*
+  Type of the routine and every bound kernel: (state, close, high, low).
+   */
+  private static final MethodType ROUTINE_TYPE = MethodType.methodType(void.class,
+      double[].class, double.class, double.class, double.class);
+  private static final MethodHandle EMA = kernel("ema", double.class, int.class);
+  private static final MethodHandle MA = kernel("ma", int.class, int.class);
+  private static final MethodHandle WMA = kernel("wma", int.class, int.class);
+  private static final MethodHandle MACD = kernel("macd", double.class,
+      double.class, double.class, int.class);
+  private static final MethodHandle KDJ = kernel("kdj", double.class, double.class,
+      int.class, int.class);
+
+  private static final Map<String, Definition> REGISTRY = new HashMap<>();
+
+  static {
+    REGISTRY.put("EMA", new Definition(OP_EMA, 1, "ema"));
+    REGISTRY.put("SMA", new Definition(OP_EMA, 2, "sma"));
+    REGISTRY.put("MA", new Definition(OP_MA, 1, "ma"));
+    REGISTRY.put("WMA", new Definition(OP_WMA, 1, "wma"));
+    REGISTRY.put("MACD", new Definition(OP_MACD, 3, "macd", "dif", "dea"));
+    REGISTRY.put("KDJ", new Definition(OP_KDJ, 3, "k", "d", "j"));
+  }
+
+  private final List<IndicatorSpec> specs;
+  private final MethodHandle routine;
+  private final int stateSize;
+  private final Map<String, Integer> slots = new HashMap<>();
+  private final List<String> outputs = new ArrayList<>();
+  private final int[] outputSlots;
+
+  private IndicatorProgram(List<IndicatorSpec> specs) {
+    this.specs = List.copyOf(specs);
+    var ops = new MethodHandle[specs.size()];
+    var offset = 0;
+    for (int i = 0; i < specs.size(); ++i) {
+      var s = specs.get(i);
+      var def = REGISTRY.get(s.getName());
+      if (def == null)
+        throw new InvalidValueException("unknown indicator " + s.getName());
+      if (s.getParamCount() != def.params)
+        throw new InvalidValueException(String.format("%s needs %d parameters",
+            s.getName(), def.params));
+      for (int p = 0; p < def.params; ++p)
+        if (s.getParam(p) <= 0)
+          throw new InvalidValueException("not positive " + s);
+      var size = def.outputs.length;
+      switch (def.opcode) {
+        case OP_EMA: {
+          double a;
+          if (def.params == 1) {
+            a = 2.0D / (s.getParam(0) + 1);
+          } else {
+            if (s.getParam(0) <= s.getParam(1))
+              throw new InvalidValueException("days not greater than weight " + s);
+            a = 1.0D * s.getParam(1) / s.getParam(0);
+          }
+          ops[i] = bind(EMA, s.getSource(), a, offset);
+          break;
+        }
+        case OP_MA:
+          ops[i] = bind(MA, s.getSource(), s.getParam(0), offset);
+          size = 4 + s.getParam(0);
+          break;
+        case OP_WMA:
+          ops[i] = bind(WMA, s.getSource(), s.getParam(0), offset);
+          size = 5 + s.getParam(0);
+          break;
+        case OP_MACD:
+          ops[i] = bind(MACD, s.getSource(), 2.0D / (s.getParam(0) + 1),
+              2.0D / (s.getParam(1) + 1), 2.0D / (s.getParam(2) + 1), offset);
+          size = 5;
+          break;
+        case OP_KDJ:
+          if (s.getSource() != IndicatorSpec.Source.CLOSE)
+            throw new InvalidValueException("source not supported " + s);
+          if (s.getParam(1) <= 1 || s.getParam(2) <= 1)
+            throw new InvalidValueException("days not greater than weight " + s);
+          ops[i] = MethodHandles.insertArguments(KDJ, 0, 1.0D / s.getParam(1),
+              1.0D / s.getParam(2), s.getParam(0), offset);
+          size = 5 + 2 * s.getParam(0);
+          break;
+        default:
+          throw new IllegalStateException("unknown opcode " + def.opcode);
+      }
+      var name = s.toString();
+      if (slots.containsKey(name) || slots.containsKey(name + "." + def.outputs[0]))
+        throw new InvalidValueException("duplicate indicator " + name);
+      if (def.outputs.length == 1)
+        slots.put(name, offset);
+      for (int o = 0; o < def.outputs.length; ++o) {
+        slots.put(name + "." + def.outputs[o], offset + o);
+        outputs.add(name + "." + def.outputs[o]);
+      }
+      offset += size;
+    }
+    this.stateSize = offset;
+    this.outputSlots = outputs.stream().mapToInt(slots::get).toArray();
+    // Fold the kernels from the last to the first, so the routine runs them in
+    // the order of specifications.
+    var r = MethodHandles.empty(ROUTINE_TYPE);
+    for (int i = ops.length - 1; i >= 0; --i)
+      r = MethodHandles.foldArguments(r, ops[i]);
+    this.routine = r;
+  }
+
+  /**
+   * Compile the specifications separated by {@code ;}.
+   *
+   * @param specs specifications
+   * @return compiled program
+   */
+  public static IndicatorProgram compile(String specs) {
+    return compile(IndicatorSpec.parseAll(specs));
+  }
+
+  public static IndicatorProgram compile(List<IndicatorSpec> specs) {
+    if (specs.isEmpty())
+      throw new InvalidValueException("no indicator");
+    return new IndicatorProgram(specs);
+  }
+
+  public List<IndicatorSpec> getSpecs() {
+    return specs;
+  }
+
+  /**
+   * Get names of all outputs in the order of specifications.
+   *
+   * @return output names
+   */
+  public List<String> getOutputs() {
+    return List.copyOf(outputs);
+  }
+
+  /**
+   * Get values of all outputs from state in the order of {@link #getOutputs()}.
+   *
+   * @param state state of a symbol
+   * @return output values
+   */
+  public double[] read(double[] state) {
+    var r = new double[outputSlots.length];
+    for (int i = 0; i < r.length; ++i)
+      r[i] = state[outputSlots[i]];
+    return r;
+  }
+
+  /**
+   * Get the index in state of the output at the specified position of
+   * {@link #getOutputs()}.
+   *
+   * @param output position of output
+   * @return index in state
+   */
+  public int getOutputSlot(int output) {
+    return outputSlots[output];
+  }
+
+  /**
+   * Get number of doubles in state.
+   *
+   * @return state size
+   */
+  public int getStateSize() {
+    return stateSize;
+  }
+
+  /**
+   * Create zeroed state for a new symbol.
+   *
+   * @return state
+   */
+  public double[] newState() {
+    return new double[stateSize];
+  }
+
+  /**
+   * Get the index of the specified output in state. An output is named by its
+   * indicator and output name, like {@code MACD(12,26,9).dif}, and an indicator
+   * with single output can also be named by itself, like {@code WMA(close,20)}.
+   *
+   * @param output output name
+   * @return index in state
+   */
+  public int slot(String output) {
+    var name = output.strip();
+    var close = name.lastIndexOf(')');
+    if (close < 0)
+      throw new InvalidValueException("malformed output " + output);
+    var key = IndicatorSpec.parse(name.substring(0, close + 1)).toString()
+        + name.substring(close + 1).strip();
+    var r = slots.get(key);
+    if (r == null)
+      throw new InvalidValueException("unknown output " + output);
+    return r;
+  }
+
+  /**
+   * Update all indicators in the state with a new bar.
+   *
+   * @param state state of a symbol
+   * @param close close price
+   * @param high  high price
+   * @param low   low price
+   */
+  public void update(double[] state, double close, double high, double low) {
+    if (state.length != stateSize)
+      throw new InvalidValueException("state not created by this program");
+    try {
+      routine.invokeExact(state, close, high, low);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /*
+  Kernels of the indicators. Every kernel takes its parameters and state offset
+  first, which are bound to constants when the program is compiled, and then the
+  state and the input.
+   */
+
+  private static void ema(double a, int b, double[] state, double x) {
+    state[b] = a * x + (1 - a) * state[b];
+  }
+
+  // ma, sum, count, position, window
+  private static void ma(int w, int b, double[] state, double x) {
+    var count = (int) state[b + 2];
+    var pos = (int) state[b + 3];
+    if (count < w)
+      state[b + 2] = ++count;
+    else
+      state[b + 1] -= state[b + 4 + pos];
+    state[b + 4 + pos] = x;
+    state[b + 1] += x;
+    state[b + 3] = pos + 1 == w ? 0 : pos + 1;
+    state[b] = state[b + 1] / count;
+  }
+
+  // wma, sum, weighted sum, count, position, window
+  private static void wma(int w, int b, double[] state, double x) {
+    var count = (int) state[b + 3];
+    var pos = (int) state[b + 4];
+    if (count < w) {
+      state[b + 3] = ++count;
+      state[b + 2] += count * x;
+      state[b + 1] += x;
+    } else {
+      state[b + 2] += w * x - state[b + 1];
+      state[b + 1] += x - state[b + 5 + pos];
+    }
+    state[b + 5 + pos] = x;
+    state[b + 4] = pos + 1 == w ? 0 : pos + 1;
+    state[b] = state[b + 2] / (count * (count + 1) / 2.0D);
+  }
+
+  // macd, dif, dea, short-term ema, long-term ema
+  private static void macd(double as, double al, double am, int b, double[] state,
+                           double x) {
+    state[b + 3] = as * x + (1 - as) * state[b + 3];
+    state[b + 4] = al * x + (1 - al) * state[b + 4];
+    var dif = state[b + 3] - state[b + 4];
+    var dea = am * dif + (1 - am) * state[b + 2];
+    state[b] = (dif - dea) * 2.0D;
+    state[b + 1] = dif;
+    state[b + 2] = dea;
+  }
+
+  // k, d, j, count, position, high window, low window
+  private static void kdj(double ak, double ad, int n, int b, double[] state,
+                          double close, double high, double low) {
+    var count = (int) state[b + 3];
+    var pos = (int) state[b + 4];
+    if (count < n)
+      state[b + 3] = ++count;
+    state[b + 5 + pos] = high;
+    state[b + 5 + n + pos] = low;
+    state[b + 4] = pos + 1 == n ? 0 : pos + 1;
+    var vh = state[b + 5];
+    var vl = state[b + 5 + n];
+    for (int i = 1; i < count; ++i) {
+      vh = Math.max(vh, state[b + 5 + i]);
+      vl = Math.min(vl, state[b + 5 + n + i]);
+    }
+    var rsv = (close - vl) / (vh - vl) * 100.0D;
+    var vk = ak * rsv + (1 - ak) * state[b];
+    var vd = ad * vk + (1 - ad) * state[b + 1];
+    state[b] = vk;
+    state[b + 1] = vd;
+    state[b + 2] = 3 * vk - 2 * vd;
+  }
+
+  private static MethodHandle kernel(String name, Class<?>... constants) {
+    var params = new ArrayList<Class<?>>(List.of(constants));
+    params.add(double[].class);
+    params.add(double.class);
+    if (name.equals("kdj")) {
+      params.add(double.class);
+      params.add(double.class);
+    }
+    try {
+      return MethodHandles.lookup().findStatic(IndicatorProgram.class, name,
+          MethodType.methodType(void.class, params));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /*
+  Bind the constants of a single-input kernel and select its input from the
+  source, so it takes (state, close, high, low).
+   */
+  private static MethodHandle bind(MethodHandle kernel, IndicatorSpec.Source source,
+                                   Object... constants) {
+    var h = MethodHandles.insertArguments(kernel, 0, constants);
+    return MethodHandles.permuteArguments(h, ROUTINE_TYPE, 0, 1 + source.ordinal());
+  }
+
+  private static class Definition {
+    private final int opcode;
+    private final int params;
+    private final String[] outputs;
+
+    Definition(int opcode, int params, String... outputs) {
+      this.opcode = opcode;
+      this.params = params;
+      this.outputs = outputs;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parsed indicator specification in the form of {@code NAME([source,] p1, p2, ...)}
+ * where source is one of {@code close}, {@code high} and {@code low}, and defaults
+ * to {@code close}. Several specifications are separated by {@code ;}, for
+ * example:<br/>
+ * <code>
+ * MACD(12,26,9); KDJ(9,3,3); WMA(close,20)
+ * </code>
+ */
+public class IndicatorSpec {
+  public enum Source {
+    CLOSE, HIGH, LOW
+  }
+
+  private final String name;
+  private final Source source;
+  private final int[] params;
+
+  public IndicatorSpec(String name, Source source, int[] params) {
+    this.name = name.toUpperCase(Locale.ROOT);
+    this.source = source;
+    this.params = params.clone();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Source getSource() {
+    return source;
+  }
+
+  public int[] getParams() {
+    return params.clone();
+  }
+
+  int getParam(int index) {
+    return params[index];
+  }
+
+  int getParamCount() {
+    return params.length;
+  }
+
+  /**
+   * Parse specifications separated by {@code ;}. Empty specifications are
+   * skipped.
+   *
+   * @param specs specifications
+   * @return list of parsed specifications
+   */
+  public static List<IndicatorSpec> parseAll(String specs) {
+    var r = new ArrayList<IndicatorSpec>();
+    for (var s : specs.split(";"))
+      if (!s.isBlank())
+        r.add(parse(s));
+    return r;
+  }
+
+  /**
+   * Parse one specification.
+   *
+   * @param spec specification
+   * @return parsed specification
+   */
+  public static IndicatorSpec parse(String spec) {
+    var s = spec.strip();
+    var open = s.indexOf('(');
+    if (open < 1 || !s.endsWith(")"))
+      throw new InvalidValueException("malformed spec " + spec);
+    var name = s.substring(0, open).strip();
+    for (var c : name.toCharArray())
+      if (!Character.isLetterOrDigit(c) && c != '_')
+        throw new InvalidValueException("malformed name " + spec);
+    var args = s.substring(open + 1, s.length() - 1).split(",");
+    var source = Source.CLOSE;
+    var first = 0;
+    var a0 = args[0].strip();
+    if (!a0.isEmpty() && Character.isLetter(a0.charAt(0))) {
+      try {
+        source = Source.valueOf(a0.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new InvalidValueException("unknown source " + spec, e);
+      }
+      first = 1;
+    }
+    var params = new int[args.length - first];
+    for (int i = first; i < args.length; ++i) {
+      try {
+        params[i - first] = Integer.parseInt(args[i].strip());
+      } catch (NumberFormatException e) {
+        throw new InvalidValueException("malformed parameter " + spec, e);
+      }
+    }
+    return new IndicatorSpec(name, source, params);
+  }
+
+  /**
+   * Normalized text of the specification. The source is omitted if it is
+   * {@code close}.
+   *
+   * @return normalized specification
+   */
+  @Override
+  public String toString() {
+    var b = new StringBuilder(name).append('(');
+    if (source != Source.CLOSE)
+      b.append(source.name().toLowerCase(Locale.ROOT)).append(',');
+    for (int i = 0; i < params.length; ++i) {
+      if (i > 0)
+        b.append(',');
+      b.append(params[i]);
+    }
+    return b.append(')').toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof IndicatorSpec))
+      return false;
+    var s = (IndicatorSpec) o;
+    return name.equals(s.name) && source == s.source
+        && Arrays.equals(params, s.params);
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+}
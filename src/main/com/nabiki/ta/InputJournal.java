@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only journal of indicator inputs in a preallocated memory-mapped file.
+ * Each input is a fixed 32-byte record of stream id, number of values and up to
+ * three values, so appending is a few stores into the mapped page cache and
+ * survives a crash of the process. A background thread flushes the appended
+ * records to disk at the configured interval, so the appending thread never waits
+ * for the disk. {@link #flush()} and {@link #close()} flush synchronously.
+ * <p>
+ * The stream id is published with a release store after the values and must be
+ * positive, so a record with a valid stream id always has its values written, and
+ * the first record with stream id {@code 0} marks the end of the journal. Reopening an
+ * existing journal continues after its last record. Use
+ * {@link #replay(Path, Replay)} to push the recorded inputs back into the
+ * indicators, preferably lazy ones so the replay only buffers the inputs.
+ * </p>
+ */
+public class InputJournal implements Closeable {
+  private static final long MAGIC = 0x4E41424A524E4C31L;
+  private static final int HEADER_SIZE = 64;
+  private static final int RECORD_SIZE = 32;
+  private static final int STREAM_OFFSET = 28;
+  private static final int COUNT_OFFSET = 24;
+
+  private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(
+      int[].class, ByteOrder.nativeOrder());
+
+  /**
+   * Receiver of replayed inputs.
+   */
+  public interface Replay {
+    /**
+     * Receive one recorded input.
+     *
+     * @param stream stream id
+     * @param count  number of values, {@code 1} for close only, or {@code 3} for
+     *               close, high and low
+     * @param close  close price
+     * @param high   high price, or {@code NaN} if not recorded
+     * @param low    low price, or {@code NaN} if not recorded
+     */
+    void onInput(int stream, int count, double close, double high, double low);
+  }
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final AtomicInteger appended = new AtomicInteger();
+  private final Thread flusher;
+  private volatile boolean closed = false;
+  private int position;
+  private int flushed;
+
+  /**
+   * Open or create journal.
+   *
+   * @param file       journal file
+   * @param capacity   number of records to preallocate, an existing larger file
+   *                   keeps its size
+   * @param flushMillis milliseconds between two background flushes
+   * @throws IOException if the file can't be opened or mapped, or it is not a
+   *                     journal
+   */
+  public InputJournal(Path file, int capacity, long flushMillis) throws IOException {
+    if (capacity <= 0 || flushMillis <= 0)
+      throw new InvalidValueException("not positive");
+    channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      var existing = channel.size();
+      var size = Math.max(existing, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+      if (size > Integer.MAX_VALUE)
+        throw new InvalidValueException("journal too large");
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.order(ByteOrder.nativeOrder());
+      this.capacity = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+      if (existing == 0) {
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, RECORD_SIZE);
+      } else if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != RECORD_SIZE) {
+        throw new IOException("not a journal: " + file);
+      }
+      position = end(buffer, this.capacity);
+      flushed = position;
+      appended.set(position);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    flusher = new Thread(() -> {
+      while (!closed) {
+        try {
+          Thread.sleep(flushMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+        flush();
+      }
+    }, "journal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Append a close-only input, like {@link Macd#add(Double)}.
+   *
+   * @param stream positive stream id
+   * @param close  close price
+   */
+  public void append(int stream, double close) {
+    write(stream, 1, close, Double.NaN, Double.NaN);
+  }
+
+  /**
+   * Append a bar input, like {@link Kdj#add(Double, Double, Double)}.
+   *
+   * @param stream positive stream id
+   * @param close  close price
+   * @param high   high price
+   * @param low    low price
+   */
+  public void append(int stream, double close, double high, double low) {
+    write(stream, 3, close, high, low);
+  }
+
+  private void write(int stream, int count, double close, double high, double low) {
+    if (stream <= 0)
+      throw new InvalidValueException("stream not positive");
+    if (position >= capacity)
+      throw new IllegalStateException("journal full");
+    var off = HEADER_SIZE + position * RECORD_SIZE;
+    buffer.putDouble(off, close);
+    buffer.putDouble(off + 8, high);
+    buffer.putDouble(off + 16, low);
+    buffer.putInt(off + COUNT_OFFSET, count);
+    INT.setRelease(buffer, off + STREAM_OFFSET, stream);
+    appended.lazySet(++position);
+  }
+
+  /**
+   * Number of records in journal.
+   *
+   * @return number of records
+   */
+  public int size() {
+    return position;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Force the records appended since last flush to disk. It is called by the
+   * background flusher, and may be called by any thread.
+   */
+  public synchronized void flush() {
+    var to = appended.get();
+    if (to == flushed)
+      return;
+    var from = HEADER_SIZE + flushed * RECORD_SIZE;
+    buffer.force(from, HEADER_SIZE + to * RECORD_SIZE - from);
+    flushed = to;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    flusher.interrupt();
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    channel.close();
+  }
+
+  /**
+   * Replay all records of the journal in the appended order.
+   *
+   * @param file    journal file
+   * @param handler receiver of the inputs
+   * @return number of replayed records
+   * @throws IOException if the file can't be read, or it is not a journal
+   */
+  public static int replay(Path file, Replay handler) throws IOException {
+    try (var ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      var size = ch.size();
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+        throw new IOException("not a journal: " + file);
+      var buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buf.order(ByteOrder.nativeOrder());
+      if (buf.getLong(0) != MAGIC || buf.getInt(8) != RECORD_SIZE)
+        throw new IOException("not a journal: " + file);
+      var cap = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+      var n = 0;
+      for (var off = HEADER_SIZE; n < cap; ++n, off += RECORD_SIZE) {
+        var stream = (int) INT.getAcquire(buf, off + STREAM_OFFSET);
+        if (stream == 0)
+          break;
+        handler.onInput(stream, buf.getInt(off + COUNT_OFFSET), buf.getDouble(off),
+            buf.getDouble(off + 8), buf.getDouble(off + 16));
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Create a replay that dispatches the inputs to indicators by stream id.
+   * {@link Kdj} receives records of close, high and low prices, and {@link Macd},
+   * {@link Ema} and {@link Ma} receive records of close price. Records of unknown
+   * streams, and records whose number of values doesn't match the target, are
+   * skipped.
+   *
+   * @param targets indicators keyed by stream id
+   * @return replay
+   */
+  public static Replay dispatch(Map<Integer, ? extends Series<?>> targets) {
+    for (var e : targets.entrySet()) {
+      var s = e.getValue();
+      if (!(s instanceof Kdj || s instanceof Macd || s instanceof Ema
+          || s instanceof Ma))
+        throw new InvalidValueException(String.format("stream %d: %s not replayable",
+            e.getKey(), s.getClass().getName()));
+    }
+    return (stream, count, close, high, low) -> {
+      var s = targets.get(stream);
+      if (s == null)
+        return;
+      if (s instanceof Kdj) {
+        if (count == 3)
+          ((Kdj) s).add(close, high, low);
+      } else if (count == 1) {
+        if (s instanceof Macd)
+          ((Macd) s).add(close);
+        else if (s instanceof Ema)
+          ((Ema) s).add(close);
+        else
+          ((Ma) s).add(close);
+      }
+    };
+  }
+
+  private static int end(MappedByteBuffer buf, int capacity) {
+    var n = 0;
+    while (n < capacity && buf.getInt(HEADER_SIZE + n * RECORD_SIZE + STREAM_OFFSET) != 0)
+      ++n;
+    return n;
+  }
+}
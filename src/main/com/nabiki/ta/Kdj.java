@@ -28,6 +28,7 @@
 
 package com.nabiki.ta;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 
@@ -42,6 +43,15 @@ import java.util.Comparator;
  * D(n) = SMA(K, d, 1)<br/>
  * J(n) = 3 x K(n) - 2 x D(n)
  * </code>
+ * <p>
+ * A lazy KDJ only buffers the inputs in {@link #add(Double, Double, Double)}, and
+ * computes the pending elements in one pass when any element is read.
+ * </p>
+ * <p>
+ * The inputs are kept, so a past bar can be corrected by
+ * {@link #revise(int, Double, Double, Double)} that recomputes the elements from
+ * that index.
+ * </p>
  */
 public class Kdj extends Series<KdjElement> {
   private final Comparator<Double> comparator = new Comparator<Double>() {
@@ -61,6 +71,10 @@ public class Kdj extends Series<KdjElement> {
   private final Sma k;
   private final Sma d;
   private final int nDays;
+  private final boolean lazy;
+  private double[] inputs = new double[0];
+  private int inputCount = 0;
+  private int computed = 0;
 
   /**
    * KDJ with default parameters:<br/>
@@ -75,13 +89,32 @@ public class Kdj extends Series<KdjElement> {
   }
 
   public Kdj(int nDays, int kDays, int dDays) {
+    this(nDays, kDays, dDays, false);
+  }
+
+  /**
+   * KDJ with the specified parameters.
+   *
+   * @param nDays days
+   * @param kDays k-days
+   * @param dDays d-days
+   * @param lazy  {@code true} to compute elements on read, {@code false} to
+   *              compute on add
+   */
+  public Kdj(int nDays, int kDays, int dDays, boolean lazy) {
     this.nDays = nDays;
     this.k = new Sma(kDays, 1);
     this.d = new Sma(dDays, 1);
+    this.lazy = lazy;
+  }
+
+  public boolean isLazy() {
+    return lazy;
   }
 
   /**
-   * Add and compute KDJ indicator on the specified inputs.
+   * Add and compute KDJ indicator on the specified inputs. A lazy KDJ buffers the
+   * inputs and defers the computation to the next read.
    *
    * @param close close price
    * @param h     high price
@@ -90,6 +123,57 @@ public class Kdj extends Series<KdjElement> {
    * otherwise.
    */
   public boolean add(Double close, Double h, Double l) {
+    var i = inputCount * 3;
+    if (i == inputs.length)
+      inputs = Arrays.copyOf(inputs, Math.max(48, i << 1));
+    inputs[i] = close;
+    inputs[i + 1] = h;
+    inputs[i + 2] = l;
+    ++inputCount;
+    if (!lazy)
+      sync();
+    return true;
+  }
+
+  /**
+   * Correct the bar at the specified index and recompute the elements from that
+   * index to the tail. The cost is proportional to the distance from the tail. A
+   * lazy KDJ defers the computation to the next read.
+   *
+   * @param index index of the bar from head to tail
+   * @param close corrected close price
+   * @param h     corrected high price
+   * @param l     corrected low price
+   */
+  public void revise(int index, Double close, Double h, Double l) {
+    if (index < 0 || index >= inputCount)
+      throw new IndexOutOfBoundsException(
+          String.format("index %d out of bounds for length %d", index, inputCount));
+    var i = index * 3;
+    inputs[i] = close;
+    inputs[i + 1] = h;
+    inputs[i + 2] = l;
+    if (index < computed) {
+      truncate(index);
+      high.truncate(index);
+      low.truncate(index);
+      k.truncate(index);
+      d.truncate(index);
+      computed = index;
+    }
+    if (!lazy)
+      sync();
+  }
+
+  @Override
+  protected void sync() {
+    for (; computed < inputCount; ++computed) {
+      var i = computed * 3;
+      compute(inputs[i], inputs[i + 1], inputs[i + 2]);
+    }
+  }
+
+  private void compute(double close, double h, double l) {
     high.add(h);
     low.add(l);
     var vh = high.getHigh(nDays, comparator).getValue();
@@ -98,7 +182,7 @@ public class Kdj extends Series<KdjElement> {
     k.add(rsv);
     d.add(k.getTail());
     var vj = 3 * k.getTail() - 2 * d.getTail();
-    return super.add(new KdjElement(k.getTail(), d.getTail(), vj));
+    super.add(new KdjElement(k.getTail(), d.getTail(), vj));
   }
 
   @Deprecated(since = "0.1")
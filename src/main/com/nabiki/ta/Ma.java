@@ -53,9 +53,17 @@ public class Ma extends Series<Double> {
   @Override
   public boolean add(Double d) {
     base.add(d);
+    return super.add(compute());
+  }
+
+  /**
+   * Compute the element for the latest input in {@link #base}.
+   *
+   * @return moving average
+   */
+  protected double compute() {
     var w = Math.min(getDays(), base.size());
-    var range = super.subList(base.size() - w, base.size());
-    return super.add(Commons.average(range));
+    return Commons.average(base.subList(base.size() - w, base.size()));
   }
 
 
@@ -28,6 +28,7 @@
 
 package com.nabiki.ta;
 
+import java.util.Arrays;
 import java.util.Collection;
 
 /**
@@ -41,13 +42,26 @@ import java.util.Collection;
  * DIF(n) = EMA(close, short_term, n) - EMA(close, long_term, n)<br/>
  * DEA(n) = EMA(DIF, mid_term, n)<br/>
  * MACD(n) = (DIF(n) - DEA(n)) x 2<br/>
+ * EMA over window w has alpha = 2 / (w + 1).
  * </code>
+ * <p>
+ * A lazy MACD only buffers the inputs in {@link #add(Double)}, and computes the
+ * pending elements in one pass when any element is read.
+ * </p>
+ * <p>
+ * The inputs are kept, so a past input can be corrected by
+ * {@link #revise(int, Double)} that recomputes the elements from that index.
+ * </p>
  */
 public class Macd extends Series<MacdElement> {
   private static final int DEFAULT_SHORT_TERM = 12;
   private static final int DEFAULT_LONG_TERM = 26;
   private static final int DEFAULT_MID_TERM = 9;
   private final Ema difShort, difLong, dea;
+  private final boolean lazy;
+  private double[] inputs = new double[0];
+  private int inputCount = 0;
+  private int computed = 0;
 
   /**
    * MACD with default parameters:<br/>
@@ -62,24 +76,82 @@ public class Macd extends Series<MacdElement> {
   }
 
   public Macd(int shortTerm, int longTerm, int midTerm) {
-    difShort = new Ema(shortTerm);
-    difLong = new Ema(longTerm);
-    dea = new Ema(midTerm);
+    this(shortTerm, longTerm, midTerm, false);
   }
 
   /**
-   * Compute and add the new {@link MacdElement} with the input close price.
+   * MACD with the specified parameters.
+   *
+   * @param shortTerm short term
+   * @param longTerm  long term
+   * @param midTerm   mid term
+   * @param lazy      {@code true} to compute elements on read, {@code false} to
+   *                  compute on add
+   */
+  public Macd(int shortTerm, int longTerm, int midTerm, boolean lazy) {
+    difShort = new Ema(2.0D / (shortTerm + 1));
+    difLong = new Ema(2.0D / (longTerm + 1));
+    dea = new Ema(2.0D / (midTerm + 1));
+    this.lazy = lazy;
+  }
+
+  public boolean isLazy() {
+    return lazy;
+  }
+
+  /**
+   * Compute and add the new {@link MacdElement} with the input close price. A lazy
+   * MACD buffers the input and defers the computation to the next read.
    *
    * @param close close price
    * @return {@code true} if new element is computed and added, {@code false}
    * otherwise.
    */
   public boolean add(Double close) {
+    if (inputCount == inputs.length)
+      inputs = Arrays.copyOf(inputs, Math.max(16, inputCount << 1));
+    inputs[inputCount++] = close;
+    if (!lazy)
+      sync();
+    return true;
+  }
+
+  /**
+   * Correct the input at the specified index and recompute the elements from that
+   * index to the tail. The cost is proportional to the distance from the tail. A
+   * lazy MACD defers the computation to the next read.
+   *
+   * @param index index of the input from head to tail
+   * @param close corrected close price
+   */
+  public void revise(int index, Double close) {
+    if (index < 0 || index >= inputCount)
+      throw new IndexOutOfBoundsException(
+          String.format("index %d out of bounds for length %d", index, inputCount));
+    inputs[index] = close;
+    if (index < computed) {
+      truncate(index);
+      difShort.truncate(index);
+      difLong.truncate(index);
+      dea.truncate(index);
+      computed = index;
+    }
+    if (!lazy)
+      sync();
+  }
+
+  @Override
+  protected void sync() {
+    while (computed < inputCount)
+      compute(inputs[computed++]);
+  }
+
+  private void compute(double close) {
     difShort.add(close);
     difLong.add(close);
     var dif = difShort.getTail() - difLong.getTail();
     dea.add(dif);
-    return super.add(new MacdElement(
+    super.add(new MacdElement(
         (dif - dea.getTail()) * 2.0D,
         dif,
         dea.getTail()));
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Order statistics over a sliding window of series elements, kept in an indexable
+ * skip list. Elements are ordered by the comparator and then by their index in
+ * series, so equal values are still distinct. Insertion, removal and lookup by
+ * rank all take O(log n).
+ */
+class RankWindow<T> {
+  private static final class Node<T> {
+    private final T value;
+    private final int index;
+    private final Node<T>[] next;
+    private final int[] width;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Node(T value, int index, int levels) {
+      this.value = value;
+      this.index = index;
+      this.next = (Node<T>[]) new Node[levels];
+      this.width = new int[levels];
+    }
+  }
+
+  private final int days;
+  private final Comparator<T> comparator;
+  private final int levels;
+  private final Node<T> head;
+  private final Node<T> nil;
+  private final Node<T>[] chain;
+  private final int[] steps;
+  private final int start;
+  private int size = 0;
+  private int end;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  RankWindow(int days, Comparator<T> comparator, int start) {
+    this.days = days;
+    this.start = start;
+    this.end = start;
+    this.comparator = comparator;
+    this.levels = 1 + 32 - Integer.numberOfLeadingZeros(days);
+    this.head = new Node<>(null, -1, levels);
+    this.nil = new Node<>(null, Integer.MAX_VALUE, 0);
+    this.chain = (Node<T>[]) new Node[levels];
+    this.steps = new int[levels];
+    for (int lv = 0; lv < levels; ++lv) {
+      head.next[lv] = nil;
+      head.width[lv] = 1;
+    }
+  }
+
+  Comparator<T> getComparator() {
+    return comparator;
+  }
+
+  /**
+   * Index in series after the latest element in window.
+   *
+   * @return end index, exclusive
+   */
+  int getEnd() {
+    return end;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Slide the window over the next element of series, removing the element that
+   * falls out of window.
+   *
+   * @param value   next element
+   * @param expired element at {@code end - days}, or {@code null} if the window
+   *                is not full
+   */
+  void push(T value, T expired) {
+    if (end - days >= start)
+      remove(expired, end - days);
+    insert(value, end++);
+  }
+
+  /**
+   * Get the node at the specified rank, {@code 0} for the lowest.
+   *
+   * @param rank rank
+   * @return series point with the reversed index relative to {@link #getEnd()}
+   */
+  SeriesPoint<T> get(int rank) {
+    var node = head;
+    var i = rank + 1;
+    for (int lv = levels - 1; lv >= 0; --lv) {
+      while (node.width[lv] <= i) {
+        i -= node.width[lv];
+        node = node.next[lv];
+      }
+    }
+    return new SeriesPoint<>(node.value, end - 1 - node.index);
+  }
+
+  private boolean less(Node<T> node, T value, int index) {
+    if (node == nil)
+      return false;
+    var r = comparator.compare(node.value, value);
+    return r < 0 || (r == 0 && node.index < index);
+  }
+
+  private void insert(T value, int index) {
+    var node = head;
+    for (int lv = levels - 1; lv >= 0; --lv) {
+      steps[lv] = 0;
+      while (less(node.next[lv], value, index)) {
+        steps[lv] += node.width[lv];
+        node = node.next[lv];
+      }
+      chain[lv] = node;
+    }
+    var d = 1;
+    var rnd = ThreadLocalRandom.current();
+    while (d < levels && rnd.nextBoolean())
+      ++d;
+    var n = new Node<>(value, index, d);
+    var s = 0;
+    for (int lv = 0; lv < d; ++lv) {
+      var prev = chain[lv];
+      n.next[lv] = prev.next[lv];
+      prev.next[lv] = n;
+      n.width[lv] = prev.width[lv] - s;
+      prev.width[lv] = s + 1;
+      s += steps[lv];
+    }
+    for (int lv = d; lv < levels; ++lv)
+      ++chain[lv].width[lv];
+    ++size;
+  }
+
+  private void remove(T value, int index) {
+    var node = head;
+    for (int lv = levels - 1; lv >= 0; --lv) {
+      while (less(node.next[lv], value, index))
+        node = node.next[lv];
+      chain[lv] = node;
+    }
+    var target = chain[0].next[0];
+    if (target == nil || target.index != index)
+      throw new IllegalStateException("element not in window");
+    var d = target.next.length;
+    for (int lv = 0; lv < d; ++lv) {
+      var prev = chain[lv];
+      prev.width[lv] += target.width[lv] - 1;
+      prev.next[lv] = target.next[lv];
+    }
+    for (int lv = d; lv < levels; ++lv)
+      --chain[lv].width[lv];
+    --size;
+  }
+}
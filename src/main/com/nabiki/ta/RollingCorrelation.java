@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.util.stream.IntStream;
+
+/**
+ * Rolling correlation and covariance matrix of returns over the latest window of
+ * bars for a fixed set of symbols, indexed by symbol id. The sums and the cross
+ * product sums are updated incrementally on every bar:<br/>
+ * <code>
+ * S(i) = S(i) + r(i) - r'(i)<br/>
+ * S(i, j) = S(i, j) + r(i) x r(j) - r'(i) x r'(j)
+ * </code>
+ * where r' is the return leaving the window, so a bar costs O(symbols^2) and the
+ * rows are updated in parallel for large sets. To keep rounding errors from
+ * accumulating, the sums are recomputed from the window once per window length.
+ */
+public class RollingCorrelation {
+  private static final int PARALLEL_THRESHOLD = 64;
+
+  private final int symbols;
+  private final int days;
+  private final double[] window;
+  private final double[] sums;
+  private final double[] cross;
+  private final double[] leaving;
+  private int count = 0;
+  private int position = 0;
+  private int sinceResync = 0;
+
+  /**
+   * Create engine.
+   *
+   * @param symbols number of symbols
+   * @param days    window of bars
+   */
+  public RollingCorrelation(int symbols, int days) {
+    if (symbols <= 0 || days <= 1)
+      throw new InvalidValueException(String.format("(%d, %d)", symbols, days));
+    this.symbols = symbols;
+    this.days = days;
+    this.window = new double[symbols * days];
+    this.sums = new double[symbols];
+    this.cross = new double[symbols * symbols];
+    this.leaving = new double[symbols];
+  }
+
+  public int getSymbols() {
+    return symbols;
+  }
+
+  public int getDays() {
+    return days;
+  }
+
+  /**
+   * Number of bars in window.
+   *
+   * @return number of bars
+   */
+  public int size() {
+    return Math.min(count, days);
+  }
+
+  /**
+   * Add returns of a new bar for all symbols.
+   *
+   * @param returns returns indexed by symbol id
+   */
+  public void add(double[] returns) {
+    if (returns.length != symbols)
+      throw new InvalidValueException(String.format("%d returns for %d symbols",
+          returns.length, symbols));
+    var off = position * symbols;
+    var full = count >= days;
+    if (full && ++sinceResync >= days) {
+      System.arraycopy(returns, 0, window, off, symbols);
+      resync();
+      sinceResync = 0;
+    } else {
+      if (full)
+        System.arraycopy(window, off, leaving, 0, symbols);
+      System.arraycopy(returns, 0, window, off, symbols);
+      rows(i -> updateRow(i, returns, leaving));
+    }
+    position = position + 1 == days ? 0 : position + 1;
+    ++count;
+  }
+
+  private void updateRow(int i, double[] r, double[] o) {
+    var ri = r[i];
+    var oi = o[i];
+    var base = i * symbols;
+    for (int j = i; j < symbols; ++j)
+      cross[base + j] += ri * r[j] - oi * o[j];
+    sums[i] += ri - oi;
+  }
+
+  private void resync() {
+    rows(i -> {
+      var base = i * symbols;
+      var s = 0.0D;
+      for (int j = i; j < symbols; ++j)
+        cross[base + j] = 0.0D;
+      for (int d = 0; d < days; ++d) {
+        var off = d * symbols;
+        var ri = window[off + i];
+        s += ri;
+        for (int j = i; j < symbols; ++j)
+          cross[base + j] += ri * window[off + j];
+      }
+      sums[i] = s;
+    });
+  }
+
+  /*
+  Run the rows, pairing row i with row n-1-i so each task has about the same
+  number of cells in the upper triangle.
+   */
+  private void rows(RowTask task) {
+    var half = (symbols + 1) / 2;
+    var s = IntStream.range(0, half);
+    if (symbols >= PARALLEL_THRESHOLD)
+      s = s.parallel();
+    s.forEach(i -> {
+      task.run(i);
+      if (symbols - 1 - i != i)
+        task.run(symbols - 1 - i);
+    });
+  }
+
+  private interface RowTask {
+    void run(int row);
+  }
+
+  /**
+   * Write the correlation matrix into a row-major array of
+   * {@code symbols x symbols}. The correlation is {@code NaN} for a symbol whose
+   * returns don't vary in window.
+   *
+   * @param out output array, or {@code null} to allocate one
+   * @return correlation matrix
+   */
+  public double[] getCorrelation(double[] out) {
+    out = output(out);
+    var m = size();
+    for (int i = 0; i < symbols; ++i) {
+      var vi = m * cross[i * symbols + i] - sums[i] * sums[i];
+      for (int j = i; j < symbols; ++j) {
+        var vj = m * cross[j * symbols + j] - sums[j] * sums[j];
+        var c = (m * cross[i * symbols + j] - sums[i] * sums[j]) / Math.sqrt(vi * vj);
+        if (i == j && !Double.isNaN(c))
+          c = 1.0D;
+        out[i * symbols + j] = c;
+        out[j * symbols + i] = c;
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Write the sample covariance matrix into a row-major array of
+   * {@code symbols x symbols}.
+   *
+   * @param out output array, or {@code null} to allocate one
+   * @return covariance matrix
+   */
+  public double[] getCovariance(double[] out) {
+    out = output(out);
+    var m = size();
+    for (int i = 0; i < symbols; ++i) {
+      for (int j = i; j < symbols; ++j) {
+        var c = (cross[i * symbols + j] - sums[i] * sums[j] / m) / (m - 1);
+        out[i * symbols + j] = c;
+        out[j * symbols + i] = c;
+      }
+    }
+    return out;
+  }
+
+  private double[] output(double[] out) {
+    if (out == null)
+      return new double[symbols * symbols];
+    if (out.length != symbols * symbols)
+      throw new InvalidValueException("output not " + symbols + " x " + symbols);
+    return out;
+  }
+}
@@ -31,10 +31,18 @@ package com.nabiki.ta;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 public class Series<T> extends ArrayList<T> {
+  private transient Map<Integer, RankWindow<T>> windows;
+
   private SeriesPoint<T> getEastValue(List<T> a, Comparator<T> c, int token) {
     int idx = a.size();
     int revIdx = 0;
@@ -91,6 +99,60 @@ public class Series<T> extends ArrayList<T> {
     return getEstValue(days, c, -1);
   }
 
+  /**
+   * Get the element at the specified percentile of the latest {@code days}
+   * elements and return the value and its reversed index. The element has rank
+   * {@code floor(q x (n - 1))} in ascending order of the {@code n} elements in
+   * window, so {@code q = 0} is the lowest and {@code q = 1} the highest.
+   * <p>
+   * The window is kept in an order statistic structure and updated with the
+   * elements appended since last call, O(log days) per element. Keep a window
+   * for each {@code days} queried. Pass the same comparator instance on every
+   * call, because another instance rebuilds the window from the elements.
+   * </p>
+   *
+   * @param days window to scan from tail to head.
+   * @param q    percentile in {@code [0, 1]}
+   * @param c    comparator
+   * @return {@link SeriesPoint} if the container is not empty, or {@code null}
+   * otherwise.
+   */
+  public SeriesPoint<T> getPercentile(int days, double q, Comparator<T> c) {
+    if (days <= 0)
+      throw new InvalidValueException("not positive");
+    if (!(q >= 0 && q <= 1))
+      throw new InvalidValueException(String.format("%f not in [0, 1]", q));
+    sync();
+    var n = super.size();
+    if (n == 0)
+      return null;
+    if (windows == null)
+      windows = new HashMap<>();
+    var w = windows.get(days);
+    if (w == null || w.getComparator() != c || w.getEnd() > n
+        || n - w.getEnd() > days) {
+      w = new RankWindow<>(days, c, Math.max(0, n - days));
+      windows.put(days, w);
+    }
+    for (int i = w.getEnd(); i < n; ++i)
+      w.push(super.get(i), i >= days ? super.get(i - days) : null);
+    return w.get((int) Math.floor(q * (w.size() - 1)));
+  }
+
+  /**
+   * Get the median of the latest {@code days} elements and return the value and
+   * its reversed index. For even number of elements it is the lower one of the
+   * two middle elements.
+   *
+   * @param days window to scan from tail to head.
+   * @param c    comparator
+   * @return {@link SeriesPoint} if the container is not empty, or {@code null}
+   * otherwise.
+   */
+  public SeriesPoint<T> getMedian(int days, Comparator<T> c) {
+    return getPercentile(days, 0.5D, c);
+  }
+
   /**
    * Get element from head to tail.
    *
@@ -135,6 +197,128 @@ public class Series<T> extends ArrayList<T> {
     return getTail(0);
   }
 
+  /**
+   * Bring the elements up to date before they are read. Lazily evaluated
+   * indicators append their inputs only and override this method to compute the
+   * pending elements. Every read accessor calls it first.
+   */
+  protected void sync() {
+  }
+
+  /**
+   * Drop the elements from the specified index to the tail, so they can be
+   * recomputed after a past input is corrected.
+   *
+   * @param size number of elements to keep
+   */
+  protected void truncate(int size) {
+    super.removeRange(size, super.size());
+    windows = null;
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    windows = null;
+  }
+
+  @Override
+  public int size() {
+    sync();
+    return super.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    sync();
+    return super.isEmpty();
+  }
+
+  @Override
+  public T get(int index) {
+    sync();
+    return super.get(index);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    sync();
+    return super.contains(o);
+  }
+
+  @Override
+  public int indexOf(Object o) {
+    sync();
+    return super.indexOf(o);
+  }
+
+  @Override
+  public int lastIndexOf(Object o) {
+    sync();
+    return super.lastIndexOf(o);
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    sync();
+    return super.iterator();
+  }
+
+  @Override
+  public ListIterator<T> listIterator() {
+    sync();
+    return super.listIterator();
+  }
+
+  @Override
+  public ListIterator<T> listIterator(int index) {
+    sync();
+    return super.listIterator(index);
+  }
+
+  @Override
+  public List<T> subList(int fromIndex, int toIndex) {
+    sync();
+    return super.subList(fromIndex, toIndex);
+  }
+
+  @Override
+  public Object[] toArray() {
+    sync();
+    return super.toArray();
+  }
+
+  @Override
+  public <E> E[] toArray(E[] a) {
+    sync();
+    return super.toArray(a);
+  }
+
+  @Override
+  public void forEach(Consumer<? super T> action) {
+    sync();
+    super.forEach(action);
+  }
+
+  @Override
+  public Spliterator<T> spliterator() {
+    sync();
+    return super.spliterator();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    // The other series syncs itself when its elements are iterated.
+    sync();
+    return super.equals(o);
+  }
+
+  @Override
+  public int hashCode() {
+    sync();
+    return super.hashCode();
+  }
+
   /**
    * @deprecated Moving average is strongly coherent with order of elements, no element should be
    * added except at the tail.
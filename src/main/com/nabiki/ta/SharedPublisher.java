@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publisher of indicator elements to a memory-mapped file that other processes on
+ * the same host read with {@link SharedReader}. The file keeps a ring of the
+ * latest elements for each key, usually a symbol and an indicator like
+ * {@code rb2101.MACD}, and every ring is guarded by a sequence lock, so readers
+ * never block the publisher and never see a partly written element.
+ * <p>
+ * File layout:<br/>
+ * <code>
+ * header: magic, max keys, ring length, number of keys, generation<br/>
+ * key table: max keys x (length, UTF-8 bytes)<br/>
+ * rings: max keys x (sequence, count, ring length x 3 doubles)
+ * </code>
+ * </p>
+ * A publisher reinitializes the file in place and bumps the generation, which is
+ * odd while initializing. Readers compare the generation on every read and
+ * resolve their keys again after a publisher restarts, because keys may be
+ * assigned to other slots. There must be only one publisher for a file.
+ */
+public class SharedPublisher implements Closeable {
+  static final long MAGIC = 0x4E41425348524431L;
+  static final int HEADER_SIZE = 64;
+  static final int MAX_KEYS_OFFSET = 8;
+  static final int RING_LENGTH_OFFSET = 12;
+  static final int KEY_COUNT_OFFSET = 16;
+  static final int GENERATION_OFFSET = 24;
+  static final int KEY_SIZE = 64;
+  static final int MAX_KEY_BYTES = KEY_SIZE - 2;
+  static final int ELEMENT_SIZE = 24;
+  static final int RING_HEADER_SIZE = 16;
+
+  static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(
+      long[].class, ByteOrder.nativeOrder());
+  static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(
+      int[].class, ByteOrder.nativeOrder());
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int maxKeys;
+  private final int ringLength;
+  private final Map<String, Integer> keys = new HashMap<>();
+
+  /**
+   * Create publisher on the specified file. The existing content of the file is
+   * discarded, but the file is not truncated, so readers mapping it are not
+   * faulted.
+   *
+   * @param file       shared file, preferably on a memory file system like
+   *                   {@code /dev/shm}
+   * @param maxKeys    maximum number of keys
+   * @param ringLength number of latest elements kept for each key
+   * @throws IOException if the file can't be created or mapped
+   */
+  public SharedPublisher(Path file, int maxKeys, int ringLength) throws IOException {
+    if (maxKeys <= 0 || ringLength <= 0)
+      throw new InvalidValueException("not positive");
+    var size = ringOffset(maxKeys, ringLength, maxKeys);
+    if (size > Integer.MAX_VALUE)
+      throw new InvalidValueException("shared file too large");
+    this.maxKeys = maxKeys;
+    this.ringLength = ringLength;
+    channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    buffer.order(ByteOrder.nativeOrder());
+    var generation = 0L;
+    if ((long) LONG.getAcquire(buffer, 0) == MAGIC)
+      generation = (long) LONG.getAcquire(buffer, GENERATION_OFFSET);
+    generation = (generation | 1) + 1;
+    // Odd generation tells readers the file is being initialized.
+    LONG.setVolatile(buffer, GENERATION_OFFSET, generation - 1);
+    var zeros = new byte[4096];
+    for (int off = HEADER_SIZE; off < size; off += zeros.length)
+      buffer.put(off, zeros, 0, (int) Math.min(zeros.length, size - off));
+    buffer.putInt(MAX_KEYS_OFFSET, maxKeys);
+    buffer.putInt(RING_LENGTH_OFFSET, ringLength);
+    INT.setRelease(buffer, KEY_COUNT_OFFSET, 0);
+    LONG.setRelease(buffer, 0, MAGIC);
+    LONG.setRelease(buffer, GENERATION_OFFSET, generation);
+  }
+
+  /*
+  Offset of the ring of the key at the specified slot, rings are aligned to cache
+  line.
+   */
+  static long ringOffset(int maxKeys, int ringLength, int slot) {
+    var ringSize = align(RING_HEADER_SIZE + (long) ringLength * ELEMENT_SIZE);
+    return align(HEADER_SIZE + (long) maxKeys * KEY_SIZE) + slot * ringSize;
+  }
+
+  private static long align(long n) {
+    return (n + 63) & ~63L;
+  }
+
+  public void publish(String key, MacdElement e) {
+    publish(key, e.getMacd(), e.getDif(), e.getDea());
+  }
+
+  public void publish(String key, KdjElement e) {
+    publish(key, e.getK(), e.getD(), e.getJ());
+  }
+
+  /**
+   * Publish an element of three values under the specified key.
+   *
+   * @param key key
+   * @param v0  first value
+   * @param v1  second value
+   * @param v2  third value
+   */
+  public void publish(String key, double v0, double v1, double v2) {
+    var base = (int) ringOffset(maxKeys, ringLength, slot(key));
+    var seq = (long) LONG.get(buffer, base);
+    var count = (long) LONG.get(buffer, base + 8);
+    LONG.setOpaque(buffer, base, seq + 1);
+    VarHandle.storeStoreFence();
+    var off = base + RING_HEADER_SIZE + (int) (count % ringLength) * ELEMENT_SIZE;
+    buffer.putDouble(off, v0);
+    buffer.putDouble(off + 8, v1);
+    buffer.putDouble(off + 16, v2);
+    LONG.setOpaque(buffer, base + 8, count + 1);
+    LONG.setRelease(buffer, base, seq + 2);
+  }
+
+  private int slot(String key) {
+    var slot = keys.get(key);
+    if (slot != null)
+      return slot;
+    var bytes = key.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_KEY_BYTES)
+      throw new InvalidValueException("key too long: " + key);
+    if (keys.size() >= maxKeys)
+      throw new IllegalStateException("too many keys");
+    var s = keys.size();
+    var off = HEADER_SIZE + s * KEY_SIZE;
+    buffer.putShort(off, (short) bytes.length);
+    buffer.put(off + 2, bytes);
+    INT.setRelease(buffer, KEY_COUNT_OFFSET, s + 1);
+    keys.put(key, s);
+    return s;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
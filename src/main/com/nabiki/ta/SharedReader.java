@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.nabiki.ta.SharedPublisher.*;
+
+/**
+ * Reader of indicator elements published by {@link SharedPublisher} in another
+ * process. Reads never block the publisher, and retry if the publisher has
+ * written the ring during the read. If the publisher restarts, the reader maps
+ * the file again and resolves its keys in the new key table.
+ * <p>
+ * If the publisher dies while writing, the ring or the file stays locked, and the
+ * read fails with {@link IllegalStateException} after a bounded number of retries
+ * instead of spinning forever.
+ * </p>
+ */
+public class SharedReader implements Closeable {
+  private static final int MAX_RETRIES = 1 << 20;
+
+  private final Path file;
+  private final FileChannel channel;
+  private final Map<String, Slot> keys = new HashMap<>();
+  private MappedByteBuffer buffer;
+  private int maxKeys;
+  private int ringLength;
+  private long generation = -1L;
+  private int scanned = 0;
+
+  /**
+   * Open reader on the specified file.
+   *
+   * @param file shared file
+   * @throws IOException if the file can't be mapped, or it is not a shared file
+   */
+  public SharedReader(Path file) throws IOException {
+    this.file = file;
+    channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      attach();
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /*
+  Map the file and read its layout for the current generation, and forget the
+  keys resolved in the previous generation.
+   */
+  private void attach() throws IOException {
+    for (int i = 0; i < MAX_RETRIES; ++i) {
+      var size = channel.size();
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+        throw new IOException("not a shared file: " + file);
+      var buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buf.order(ByteOrder.nativeOrder());
+      if ((long) LONG.getAcquire(buf, 0) != MAGIC)
+        throw new IOException("not a shared file: " + file);
+      var g = (long) LONG.getAcquire(buf, GENERATION_OFFSET);
+      if ((g & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      var mk = buf.getInt(MAX_KEYS_OFFSET);
+      var rl = buf.getInt(RING_LENGTH_OFFSET);
+      VarHandle.loadLoadFence();
+      if ((long) LONG.getAcquire(buf, GENERATION_OFFSET) != g)
+        continue;
+      if (mk <= 0 || rl <= 0 || ringOffset(mk, rl, mk) > size)
+        throw new IOException("truncated shared file: " + file);
+      buffer = buf;
+      maxKeys = mk;
+      ringLength = rl;
+      generation = g;
+      keys.clear();
+      scanned = 0;
+      return;
+    }
+    throw new IllegalStateException("publisher stalled initializing " + file);
+  }
+
+  /*
+  Check the generation before a read, and attach again if the publisher has
+  restarted. Return false if the publisher is initializing the file.
+   */
+  private boolean current() {
+    var g = (long) LONG.getAcquire(buffer, GENERATION_OFFSET);
+    if ((g & 1) != 0)
+      return false;
+    if (g != generation) {
+      try {
+        attach();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return true;
+  }
+
+  /*
+  Check the generation after a read.
+   */
+  private boolean unchanged() {
+    VarHandle.loadLoadFence();
+    return (long) LONG.getAcquire(buffer, GENERATION_OFFSET) == generation;
+  }
+
+  /**
+   * Get number of elements ever published under the key.
+   *
+   * @param key key
+   * @return number of elements, or {@code 0} if the key isn't published
+   */
+  public long getCount(String key) {
+    for (int i = 0; i < MAX_RETRIES; ++i) {
+      if (!current()) {
+        Thread.onSpinWait();
+        continue;
+      }
+      var base = ringBase(key);
+      var r = base < 0 ? 0L : (long) LONG.getAcquire(buffer, base + 8);
+      if (unchanged())
+        return r;
+    }
+    throw new IllegalStateException("publisher stalled on " + key);
+  }
+
+  /**
+   * Get the latest {@link MacdElement} published under the key.
+   *
+   * @param key key
+   * @return element, or {@code null} if nothing is published
+   */
+  public MacdElement readMacd(String key) {
+    var r = readTail(key, 1);
+    return r.length == 0 ? null : new MacdElement(r[0][0], r[0][1], r[0][2]);
+  }
+
+  /**
+   * Get the latest {@link KdjElement} published under the key.
+   *
+   * @param key key
+   * @return element, or {@code null} if nothing is published
+   */
+  public KdjElement readKdj(String key) {
+    var r = readTail(key, 1);
+    return r.length == 0 ? null : new KdjElement(r[0][0], r[0][1], r[0][2]);
+  }
+
+  /**
+   * Read the latest elements published under the key, indexed by reversed index
+   * so {@code 0} is the tail. At most ring length elements are available.
+   *
+   * @param key key
+   * @param n   maximum number of elements
+   * @return elements of three values each
+   */
+  public double[][] readTail(String key, int n) {
+    for (int i = 0; i < MAX_RETRIES; ++i) {
+      if (!current()) {
+        Thread.onSpinWait();
+        continue;
+      }
+      var base = ringBase(key);
+      if (base < 0 || n <= 0) {
+        if (unchanged())
+          return new double[0][];
+        continue;
+      }
+      var seq = (long) LONG.getAcquire(buffer, base);
+      if ((seq & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      var count = (long) LONG.getOpaque(buffer, base + 8);
+      var k = (int) Math.min(Math.min(n, ringLength), count);
+      var r = new double[k][3];
+      for (int j = 0; j < k; ++j) {
+        var off = base + RING_HEADER_SIZE
+            + (int) ((count - 1 - j) % ringLength) * ELEMENT_SIZE;
+        r[j][0] = buffer.getDouble(off);
+        r[j][1] = buffer.getDouble(off + 8);
+        r[j][2] = buffer.getDouble(off + 16);
+      }
+      VarHandle.loadLoadFence();
+      if ((long) LONG.getOpaque(buffer, base) == seq && unchanged())
+        return r;
+    }
+    throw new IllegalStateException("publisher stalled on " + key);
+  }
+
+  /*
+  Resolve the ring of the key, and verify the key stored in the slot so a stale
+  slot is never read.
+   */
+  private int ringBase(String key) {
+    var slot = keys.get(key);
+    if (slot != null && !stored(slot)) {
+      keys.clear();
+      scanned = 0;
+      slot = null;
+    }
+    if (slot == null) {
+      var n = Math.min(maxKeys, (int) INT.getAcquire(buffer, KEY_COUNT_OFFSET));
+      for (; scanned < n; ++scanned) {
+        var off = HEADER_SIZE + scanned * KEY_SIZE;
+        var len = Math.min(MAX_KEY_BYTES, Math.max(0, buffer.getShort(off)));
+        var bytes = new byte[len];
+        buffer.get(off + 2, bytes);
+        keys.put(new String(bytes, StandardCharsets.UTF_8), new Slot(scanned, bytes));
+      }
+      slot = keys.get(key);
+      if (slot == null)
+        return -1;
+    }
+    return (int) ringOffset(maxKeys, ringLength, slot.index);
+  }
+
+  private boolean stored(Slot slot) {
+    var off = HEADER_SIZE + slot.index * KEY_SIZE;
+    if (buffer.getShort(off) != slot.bytes.length)
+      return false;
+    for (int i = 0; i < slot.bytes.length; ++i)
+      if (buffer.get(off + 2 + i) != slot.bytes[i])
+        return false;
+    return true;
+  }
+
+  private static class Slot {
+    private final int index;
+    private final byte[] bytes;
+
+    Slot(int index, byte[] bytes) {
+      this.index = index;
+      this.bytes = bytes;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
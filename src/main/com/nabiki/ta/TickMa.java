@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.util.Collection;
+
+/**
+ * Moving average over prices in ticks. The window sum is kept as a {@code long}
+ * and rolled exactly, so the output only depends on the inputs and never on the
+ * order of floating point operations:<br/>
+ * <code>
+ * sum(n) = sum(n-1) + p(n) - p(n-w)<br/>
+ * MA(n) = sum(n) x tick_size / w
+ * </code>
+ */
+public class TickMa extends Series<Double> {
+  private final int days;
+  protected final TickSeries base;
+  protected long sum = 0L;
+
+  public TickMa(int days, double tickSize) {
+    if (days <= 0)
+      throw new InvalidValueException("not positive");
+    this.days = days;
+    this.base = new TickSeries(tickSize);
+  }
+
+  public int getDays() {
+    return days;
+  }
+
+  /**
+   * Get the input ticks.
+   *
+   * @return input series
+   */
+  public TickSeries getBase() {
+    return base;
+  }
+
+  /**
+   * Add the input in ticks and compute the average.
+   *
+   * @param tick price in ticks
+   * @return {@code true} if new element is computed and added, {@code false}
+   * otherwise.
+   */
+  public boolean add(long tick) {
+    var v = next(tick);
+    base.add(tick);
+    return super.add(v);
+  }
+
+  /**
+   * Compute the output for the new input before it is added to {@link #base}.
+   *
+   * @param tick price in ticks
+   * @return scaled output
+   */
+  protected double next(long tick) {
+    sum += tick;
+    if (base.size() >= days)
+      sum -= base.getTail(days - 1);
+    var w = Math.min(days, base.size() + 1);
+    return base.toPrice(sum) / w;
+  }
+
+  /**
+   * @deprecated Input is in ticks, call {@link #add(long)}.
+   */
+  @Deprecated(since = "0.1")
+  @Override
+  public boolean add(Double d) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @deprecated Input is in ticks, call {@link #add(long)}.
+   */
+  @Deprecated(since = "0.1")
+  @Override
+  public boolean addAll(Collection<? extends Double> c) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.util.Arrays;
+
+/**
+ * Input series of prices represented as integer multiples of a tick size. Values
+ * are stored as primitive {@code long} ticks, 8 bytes per point, and all window
+ * operations are exact integer arithmetic. Only the values handed out by
+ * {@link #toPrice(long)} are scaled to floating point.
+ */
+public class TickSeries {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final double tickSize;
+  private long[] ticks = new long[INITIAL_CAPACITY];
+  private int size = 0;
+
+  public TickSeries(double tickSize) {
+    if (!(tickSize > 0) || Double.isInfinite(tickSize))
+      throw new InvalidValueException(String.format("tick size %f not positive", tickSize));
+    this.tickSize = tickSize;
+  }
+
+  public double getTickSize() {
+    return tickSize;
+  }
+
+  /**
+   * Scale the specified number of ticks to price.
+   *
+   * @param tick number of ticks
+   * @return price
+   */
+  public double toPrice(long tick) {
+    return tick * tickSize;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void add(long tick) {
+    if (size == ticks.length)
+      ticks = Arrays.copyOf(ticks, size << 1);
+    ticks[size++] = tick;
+  }
+
+  /**
+   * Get element from head to tail.
+   *
+   * @param index index
+   * @return number of ticks
+   */
+  public long get(int index) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException(
+          String.format("index %d out of bounds for length %d", index, size));
+    return ticks[index];
+  }
+
+  /**
+   * Get element indexed from tail to head.
+   *
+   * @param reversedIndex reversed index from tail to head.
+   * @return number of ticks
+   */
+  public long getTail(int reversedIndex) {
+    return get(size - 1 - reversedIndex);
+  }
+
+  /**
+   * Get the last element.
+   *
+   * @return number of ticks
+   */
+  public long getTail() {
+    return getTail(0);
+  }
+
+  /**
+   * Get highest value from the latest {@code days} elements and return the value
+   * and its reversed index. On ties the latest element wins, the same as
+   * {@link Series#getHigh(int, java.util.Comparator)}.
+   *
+   * @param days window to scan from tail to head.
+   * @return {@link SeriesPoint} if the container is not empty, or {@code null}
+   * otherwise.
+   */
+  public SeriesPoint<Long> getHigh(int days) {
+    return getEstValue(days, 1);
+  }
+
+  /**
+   * Get lowest value from the latest {@code days} elements and return the value
+   * and its reversed index.
+   *
+   * @param days window to scan from tail to head.
+   * @return {@link SeriesPoint} if the container is not empty, or {@code null}
+   * otherwise.
+   */
+  public SeriesPoint<Long> getLow(int days) {
+    return getEstValue(days, -1);
+  }
+
+  /*
+  To find a bigger value, set token positive, otherwise set it negative.
+   */
+  private SeriesPoint<Long> getEstValue(int days, int token) {
+    int n = Math.min(days, size);
+    if (n < 1)
+      return null;
+    int idx = size - 1;
+    int best = idx;
+    while (--n > 0) {
+      --idx;
+      if (Long.compare(ticks[idx], ticks[best]) * token > 0)
+        best = idx;
+    }
+    return new SeriesPoint<>(ticks[best], size - 1 - best);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+/**
+ * Weighted moving average over prices in ticks. Both the plain window sum and the
+ * weighted sum are rolled exactly in {@code long}:<br/>
+ * <code>
+ * When window w is full, every weight in the window decreases by one and the new
+ * input takes weight w:<br/>
+ * deno(n) = deno(n-1) - sum(n-1) + w x p(n)<br/>
+ * sum(n) = sum(n-1) + p(n) - p(n-w)<br/>
+ * WMA(n) = deno(n) x tick_size / (w x (w+1) / 2)
+ * </code>
+ */
+public class TickWma extends TickMa {
+  private long deno = 0L;
+
+  public TickWma(int window, double tickSize) {
+    super(window, tickSize);
+  }
+
+  @Override
+  protected double next(long tick) {
+    var n = base.size();
+    if (n >= getDays()) {
+      deno += getDays() * tick - sum;
+      sum += tick - base.getTail(getDays() - 1);
+      n = getDays();
+    } else {
+      deno += (n + 1) * tick;
+      sum += tick;
+      ++n;
+    }
+    return base.toPrice(deno) / (n * (n + 1L) / 2);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Series of timestamped doubles for long history. The latest points are kept in a
+ * hot block of primitive arrays, and every full block is sealed into an immutable
+ * {@link ColdBlock} compressed with delta of delta timestamps and XOR values.
+ * Reading a cold point decompresses its block transparently, and the latest
+ * decompressed blocks are kept in a small cache.
+ */
+public class TieredSeries {
+  private static final int DEFAULT_BLOCK_SIZE = 1024;
+  private static final int DEFAULT_CACHE_BLOCKS = 4;
+
+  private final int blockSize;
+  private final ArrayList<ColdBlock> cold = new ArrayList<>();
+  private final long[] hotTimes;
+  private final double[] hotValues;
+  private final Map<Integer, Decoded> cache;
+  private int hotSize = 0;
+  private long coldBytes = 0L;
+
+  public TieredSeries() {
+    this(DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_BLOCKS);
+  }
+
+  /**
+   * Create series.
+   *
+   * @param blockSize   number of points in a block
+   * @param cacheBlocks number of decompressed blocks to cache
+   */
+  public TieredSeries(int blockSize, int cacheBlocks) {
+    if (blockSize <= 0 || cacheBlocks <= 0)
+      throw new InvalidValueException("not positive");
+    this.blockSize = blockSize;
+    this.hotTimes = new long[blockSize];
+    this.hotValues = new double[blockSize];
+    this.cache = new LinkedHashMap<>(cacheBlocks * 2, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Decoded> eldest) {
+        return size() > cacheBlocks;
+      }
+    };
+  }
+
+  public int size() {
+    return cold.size() * blockSize + hotSize;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Add value timestamped by its index.
+   *
+   * @param value value
+   */
+  public void add(double value) {
+    add(size(), value);
+  }
+
+  /**
+   * Add timestamped value.
+   *
+   * @param time  timestamp
+   * @param value value
+   */
+  public void add(long time, double value) {
+    hotTimes[hotSize] = time;
+    hotValues[hotSize] = value;
+    if (++hotSize == blockSize) {
+      var block = ColdBlock.encode(hotTimes, hotValues, blockSize);
+      coldBytes += block.bytes();
+      cold.add(block);
+      hotSize = 0;
+    }
+  }
+
+  /**
+   * Get value from head to tail.
+   *
+   * @param index index
+   * @return value
+   */
+  public double get(int index) {
+    check(index);
+    var b = index / blockSize;
+    return b == cold.size()
+        ? hotValues[index - b * blockSize] : decoded(b).values[index - b * blockSize];
+  }
+
+  /**
+   * Get timestamp from head to tail.
+   *
+   * @param index index
+   * @return timestamp
+   */
+  public long getTime(int index) {
+    check(index);
+    var b = index / blockSize;
+    return b == cold.size()
+        ? hotTimes[index - b * blockSize] : decoded(b).times[index - b * blockSize];
+  }
+
+  /**
+   * Get value indexed from tail to head.
+   *
+   * @param reversedIndex reversed index from tail to head.
+   * @return value
+   */
+  public double getTail(int reversedIndex) {
+    return get(size() - 1 - reversedIndex);
+  }
+
+  /**
+   * Get the last value.
+   *
+   * @return last value
+   */
+  public double getTail() {
+    return getTail(0);
+  }
+
+  /**
+   * Number of bytes taken by the compressed cold blocks.
+   *
+   * @return number of bytes
+   */
+  public long getColdBytes() {
+    return coldBytes;
+  }
+
+  private void check(int index) {
+    if (index < 0 || index >= size())
+      throw new IndexOutOfBoundsException(
+          String.format("index %d out of bounds for length %d", index, size()));
+  }
+
+  private Decoded decoded(int block) {
+    var d = cache.get(block);
+    if (d == null) {
+      d = new Decoded(blockSize);
+      cold.get(block).decode(d.times, d.values);
+      cache.put(block, d);
+    }
+    return d;
+  }
+
+  private static class Decoded {
+    private final long[] times;
+    private final double[] values;
+
+    Decoded(int size) {
+      times = new long[size];
+      values = new double[size];
+    }
+  }
+}
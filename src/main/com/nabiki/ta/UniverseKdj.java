@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+/**
+ * KDJ of a whole universe of symbols that update together, like on a minute bar
+ * close. The high and low windows of all symbols are kept in rings of contiguous
+ * rows, one row per bar indexed by symbol id, so the highest and lowest values are
+ * scanned row by row over all symbols. The values are the same as the ones of
+ * {@link Kdj}.
+ */
+public class UniverseKdj {
+  private final int nDays;
+  private final double alphaK, alphaD;
+  private final double[] highs, lows;
+  private final double[] hhv, llv, k, d, j;
+  private int size = 0;
+  private int position = 0;
+
+  public UniverseKdj(int symbols) {
+    this(symbols, 9, 3, 3);
+  }
+
+  public UniverseKdj(int symbols, int nDays, int kDays, int dDays) {
+    if (symbols <= 0 || nDays <= 0)
+      throw new InvalidValueException("not positive");
+    if (kDays <= 1 || dDays <= 1)
+      throw new InvalidValueException(String.format("(%d, %d)", kDays, dDays));
+    this.nDays = nDays;
+    alphaK = 1.0D / kDays;
+    alphaD = 1.0D / dDays;
+    highs = new double[nDays * symbols];
+    lows = new double[nDays * symbols];
+    hhv = new double[symbols];
+    llv = new double[symbols];
+    k = new double[symbols];
+    d = new double[symbols];
+    j = new double[symbols];
+  }
+
+  public int getSymbols() {
+    return k.length;
+  }
+
+  /**
+   * Number of updates.
+   *
+   * @return number of updates
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Update all symbols with their bars. A symbol without new bar should carry its
+   * previous close and repeat the close as high and low.
+   *
+   * @param close close prices indexed by symbol id
+   * @param high  high prices indexed by symbol id
+   * @param low   low prices indexed by symbol id
+   */
+  public void update(double[] close, double[] high, double[] low) {
+    var n = k.length;
+    if (close.length != n || high.length != n || low.length != n)
+      throw new InvalidValueException(String.format("prices not for %d symbols", n));
+    System.arraycopy(high, 0, highs, position * n, n);
+    System.arraycopy(low, 0, lows, position * n, n);
+    position = position + 1 == nDays ? 0 : position + 1;
+    ++size;
+    var rows = Math.min(size, nDays);
+    System.arraycopy(highs, 0, hhv, 0, n);
+    System.arraycopy(lows, 0, llv, 0, n);
+    for (int r = 1; r < rows; ++r) {
+      var off = r * n;
+      for (int i = 0; i < n; ++i) {
+        hhv[i] = Math.max(hhv[i], highs[off + i]);
+        llv[i] = Math.min(llv[i], lows[off + i]);
+      }
+    }
+    final var ak = alphaK;
+    final var ad = alphaD;
+    for (int i = 0; i < n; ++i) {
+      var rsv = (close[i] - llv[i]) / (hhv[i] - llv[i]) * 100.0D;
+      var vk = ak * rsv + (1 - ak) * k[i];
+      var vd = ad * vk + (1 - ad) * d[i];
+      k[i] = vk;
+      d[i] = vd;
+      j[i] = 3 * vk - 2 * vd;
+    }
+  }
+
+  /**
+   * Get latest element of the symbol.
+   *
+   * @param symbol symbol id
+   * @return element
+   */
+  public KdjElement get(int symbol) {
+    return new KdjElement(k[symbol], d[symbol], j[symbol]);
+  }
+
+  /**
+   * Get latest K of all symbols. The array is updated in place, don't modify.
+   *
+   * @return K indexed by symbol id
+   */
+  public double[] getK() {
+    return k;
+  }
+
+  /**
+   * Get latest D of all symbols. The array is updated in place, don't modify.
+   *
+   * @return D indexed by symbol id
+   */
+  public double[] getD() {
+    return d;
+  }
+
+  /**
+   * Get latest J of all symbols. The array is updated in place, don't modify.
+   *
+   * @return J indexed by symbol id
+   */
+  public double[] getJ() {
+    return j;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ta;
+
+/**
+ * MACD of a whole universe of symbols that update together, like on a minute bar
+ * close. The state of all symbols is kept in contiguous primitive arrays indexed
+ * by symbol id, and one {@link #update(double[])} runs every symbol in a flat
+ * loop. The values are the same as the ones of {@link Macd}.
+ */
+public class UniverseMacd {
+  private final double alphaShort, alphaLong, alphaMid;
+  private final double[] emaShort, emaLong, dif, dea, macd;
+  private int size = 0;
+
+  public UniverseMacd(int symbols) {
+    this(symbols, 12, 26, 9);
+  }
+
+  public UniverseMacd(int symbols, int shortTerm, int longTerm, int midTerm) {
+    if (symbols <= 0)
+      throw new InvalidValueException("not positive");
+    if (shortTerm <= 1 || longTerm <= 1 || midTerm <= 1)
+      throw new InvalidValueException(String.format("(%d, %d, %d)", shortTerm,
+          longTerm, midTerm));
+    alphaShort = 2.0D / (shortTerm + 1);
+    alphaLong = 2.0D / (longTerm + 1);
+    alphaMid = 2.0D / (midTerm + 1);
+    emaShort = new double[symbols];
+    emaLong = new double[symbols];
+    dif = new double[symbols];
+    dea = new double[symbols];
+    macd = new double[symbols];
+  }
+
+  public int getSymbols() {
+    return macd.length;
+  }
+
+  /**
+   * Number of updates.
+   *
+   * @return number of updates
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Update all symbols with their close prices. A symbol without new bar should
+   * carry its previous close.
+   *
+   * @param close close prices indexed by symbol id
+   */
+  public void update(double[] close) {
+    if (close.length != macd.length)
+      throw new InvalidValueException(String.format("%d prices for %d symbols",
+          close.length, macd.length));
+    final var as = alphaShort;
+    final var al = alphaLong;
+    final var am = alphaMid;
+    for (int i = 0; i < close.length; ++i) {
+      var s = as * close[i] + (1 - as) * emaShort[i];
+      var l = al * close[i] + (1 - al) * emaLong[i];
+      var f = s - l;
+      var e = am * f + (1 - am) * dea[i];
+      emaShort[i] = s;
+      emaLong[i] = l;
+      dif[i] = f;
+      dea[i] = e;
+      macd[i] = (f - e) * 2.0D;
+    }
+    ++size;
+  }
+
+  /**
+   * Get latest element of the symbol.
+   *
+   * @param symbol symbol id
+   * @return element
+   */
+  public MacdElement get(int symbol) {
+    return new MacdElement(macd[symbol], dif[symbol], dea[symbol]);
+  }
+
+  /**
+   * Get latest MACD of all symbols. The array is updated in place, don't modify.
+   *
+   * @return MACD indexed by symbol id
+   */
+  public double[] getMacd() {
+    return macd;
+  }
+
+  /**
+   * Get latest DIF of all symbols. The array is updated in place, don't modify.
+   *
+   * @return DIF indexed by symbol id
+   */
+  public double[] getDif() {
+    return dif;
+  }
+
+  /**
+   * Get latest DEA of all symbols. The array is updated in place, don't modify.
+   *
+   * @return DEA indexed by symbol id
+   */
+  public double[] getDea() {
+    return dea;
+  }
+}
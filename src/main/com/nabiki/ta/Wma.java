@@ -44,15 +44,12 @@ public class Wma extends Ma {
   }
 
   @Override
-  public boolean add(Double d) {
-    base.add(d);
+  protected double compute() {
     var n = Math.min(base.size(), getDays());
     var idx = base.size();
     var t = 0.0D;
-    do {
-      t += n * base.get(--idx);
-    } while (--n > 0);
-    t /= n * (n + 1) / 2.0D;
-    return super.add(t);
+    for (int w = n; w > 0; --w)
+      t += w * base.get(--idx);
+    return t / (n * (n + 1) / 2.0D);
   }
 }